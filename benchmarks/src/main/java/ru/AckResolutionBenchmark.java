@@ -0,0 +1,61 @@
+package ru;
+
+import org.openjdk.jmh.annotations.*;
+import ru.chatpacket.ChatTextMessage;
+import ru.chatpacket.DeliveryDataTuple;
+
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+// Обработка подтверждения, когда соседу отправлено pending неподтвержденных сообщений:
+// поиск получателя по sequence number, удаление сообщения из таблицы и постановка нового на его место
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AckResolutionBenchmark {
+    @Param({"10", "1000", "10000", "100000"})
+    int pending;
+
+    private PendingDeliveryTable table;
+    private Node node;
+    //неподтвержденные получатели в порядке отправки
+    private final ArrayDeque<DeliveryDataTuple> inFlight = new ArrayDeque<>();
+    private int unknownSequenceNumber;
+
+    @Setup
+    public void setup() {
+        table = new PendingDeliveryTable();
+        node = new Node(InetAddress.getLoopbackAddress(), 5000);
+        for (int i = 0; i < pending; i++)
+            send();
+        unknownSequenceNumber = node.nextSequenceNumber() + 1_000_000;
+    }
+
+    //подтверждение самого старого сообщения и отправка нового (в таблице всегда pending сообщений)
+    @Benchmark
+    public DeliveryDataTuple acknowledgeOldest() {
+        DeliveryDataTuple acknowledged = table.acknowledge(node, inFlight.poll().sequenceNumber);
+        send();
+        return acknowledged;
+    }
+
+    //подтверждение номера, которого нет в таблице (повторный отчет)
+    @Benchmark
+    public DeliveryDataTuple acknowledgeUnknown() {
+        return table.acknowledge(node, unknownSequenceNumber);
+    }
+
+    private void send() {
+        ChatTextMessage message = new ChatTextMessage("benchmark");
+        message.setRecipient(node);
+        table.add(message);
+
+        DeliveryDataTuple recipient = message.getRecipients().iterator().next();
+        table.track(recipient);
+        inFlight.add(recipient);
+    }
+}
@@ -0,0 +1,159 @@
+package ru;
+
+import org.openjdk.jmh.annotations.*;
+import ru.chatpacket.ChatFragmentMessage;
+import ru.chatpacket.ChatFrame;
+import ru.chatpacket.ChatInfoMessage;
+import ru.chatpacket.ChatReportMessage;
+import ru.chatpacket.ChatTextMessage;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+
+import static ru.chatpacket.ProtocolMagicValues.*;
+
+// Кодирование и разбор кадров каждого типа сообщений
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    //длина текста сообщения в байтах
+    @Param({"16", "256", "1024"})
+    int textLength;
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(65536);
+    private final ChatFrame frame = new ChatFrame();
+    private final ChatReportMessage report = new ChatReportMessage();
+    private final PayloadCodec codec = new PayloadCodec(new ChatMetrics());
+
+    private ChatTextMessage text;
+    private ChatFragmentMessage fragment;
+    private ChatInfoMessage info;
+    private byte[] compressedText;
+
+    private ByteBuffer textFrame;
+    private ByteBuffer compressedFrame;
+    private ByteBuffer fragmentFrame;
+    private ByteBuffer infoFrame;
+    private ByteBuffer reportFrame;
+
+    private MessageReassembler reassembler;
+    private Node sender;
+
+    @Setup
+    public void setup() throws Exception {
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < textLength)
+            builder.append("{\"id\": 42, \"name\": \"node\", \"status\": \"OK\"} ");
+        byte[] textBytes = builder.substring(0, textLength).getBytes(StandardCharsets.UTF_8);
+
+        text = new ChatTextMessage(textBytes, false);
+        fragment = new ChatFragmentMessage(textBytes, 1, 0, 1, 0, textBytes.length, false);
+        info = new ChatInfoMessage(CHILD);
+        info.setNodeName("benchmark-node");
+        info.setCapabilities(CAPCOMPRESSION);
+        compressedText = codec.compress(textBytes);
+
+        textFrame = encoded(text.getLength(), text::encode);
+        fragmentFrame = encoded(fragment.getLength(), fragment::encode);
+        infoFrame = encoded(info.getLength(), info::encode);
+        reportFrame = encoded(REPORTLEN, report.set(100, 0b1011)::encode);
+        ChatTextMessage compressed = new ChatTextMessage(compressedText != null ? compressedText : textBytes,
+                compressedText != null);
+        compressedFrame = encoded(compressed.getLength(), compressed::encode);
+
+        //колесо крутит поток бенчмарка, поэтому таймауты сборки ставятся и снимаются прямо в ячейках колеса
+        TimerWheel wheel = new TimerWheel(10, 512);
+        wheel.advance();
+        reassembler = new MessageReassembler(wheel);
+        sender = new Node(InetAddress.getLoopbackAddress(), 5000);
+    }
+
+    @Benchmark
+    public int encodeText() {
+        buffer.clear();
+        text.encode(buffer);
+        return buffer.position();
+    }
+
+    @Benchmark
+    public int encodeFragment() {
+        buffer.clear();
+        fragment.encode(buffer);
+        return buffer.position();
+    }
+
+    @Benchmark
+    public int encodeInfo() {
+        buffer.clear();
+        info.encode(buffer);
+        return buffer.position();
+    }
+
+    @Benchmark
+    public int encodeReport() {
+        buffer.clear();
+        report.set(100, 0b1011).encode(buffer);
+        return buffer.position();
+    }
+
+    //разбор TEXT так же, как при выводе принятого сообщения
+    @Benchmark
+    public String decodeText() {
+        frame.wrap(textFrame, 0, textFrame.limit());
+        int length = frame.getInt(TEXTLENPOS);
+        byte[] textBytes = new byte[length];
+        frame.get(TEXTPOS, textBytes);
+        return new String(textBytes, StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public String decodeCompressedText() throws DataFormatException {
+        frame.wrap(compressedFrame, 0, compressedFrame.limit());
+        int length = frame.getInt(TEXTLENPOS);
+        byte[] textBytes = new byte[length];
+        frame.get(TEXTPOS, textBytes);
+        if ((frame.get(MSGTYPEPOS) & COMPRESSED) == 0)
+            return new String(textBytes, StandardCharsets.UTF_8);
+        return new String(codec.decompress(textBytes, 0, textBytes.length), StandardCharsets.UTF_8);
+    }
+
+    //фрагмент единственный, поэтому сборщик сразу отдает сообщение целиком
+    @Benchmark
+    public byte[] decodeFragment() {
+        frame.wrap(fragmentFrame, 0, fragmentFrame.limit());
+        return reassembler.addFragment(sender, frame);
+    }
+
+    @Benchmark
+    public String decodeInfo() {
+        frame.wrap(infoFrame, 0, infoFrame.limit());
+        int nameLength = frame.getInt(INFONAMELENPOS);
+        byte[] name = new byte[nameLength];
+        frame.get(INFONAMEPOS, name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public long decodeReport() {
+        frame.wrap(reportFrame, 0, reportFrame.limit());
+        return frame.getInt(SEQNUMPOS) + frame.getLong(REPORTSACKPOS);
+    }
+
+    private interface Encoder {
+        void encode(ByteBuffer buffer);
+    }
+
+    private static ByteBuffer encoded(int length, Encoder encoder) {
+        ByteBuffer frame = ByteBuffer.allocateDirect(length);
+        encoder.encode(frame);
+        frame.flip();
+        return frame;
+    }
+}
@@ -0,0 +1,112 @@
+package ru;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Отсев дубликатов окном приема при разном размере истории (сколько последних номеров помнит окно)
+// в сравнении с прежней проверкой Node.isExist - перебором списка из 512 последних номеров
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DuplicateLookupBenchmark {
+    @Param({"64", "1024", "16384", "65536"})
+    int historySize;
+
+    private ReceiveWindow window;
+    private int nextSequenceNumber;
+    private int duplicate;
+
+    @Setup
+    public void setup() {
+        nextSequenceNumber = 1_000_000;
+        window = new ReceiveWindow(historySize, nextSequenceNumber);
+        //окно заполнено принятыми сообщениями
+        for (int i = 0; i < window.getSize(); i++)
+            window.accept(nextSequenceNumber++);
+    }
+
+    //новое сообщение: окно сдвигается на один номер
+    @Benchmark
+    public boolean acceptNew() {
+        return window.accept(nextSequenceNumber++);
+    }
+
+    //дубликат недавно принятого сообщения
+    @Benchmark
+    public boolean rejectDuplicate() {
+        duplicate = (duplicate + 7) & 63;
+        return window.accept(nextSequenceNumber - 1 - duplicate);
+    }
+
+    //сообщение пришло не по порядку: сначала более новое, затем пропущенное
+    @Benchmark
+    public boolean acceptOutOfOrder() {
+        window.accept(nextSequenceNumber + 1);
+        boolean accepted = window.accept(nextSequenceNumber);
+        nextSequenceNumber += 2;
+        return accepted;
+    }
+
+    // Прежняя проверка дубликатов: 512 последних номеров в кольцевом списке, поиск - перебор всего списка
+    // (размер истории historySize на нее не влияет)
+    @State(Scope.Thread)
+    public static class IdList {
+        private static final int MAXIDCOUNT = 512;
+        private final int[] idList = new int[MAXIDCOUNT];
+        private int currentPos = 0;
+
+        int nextSequenceNumber;
+        int duplicate;
+
+        @Setup
+        public void setup() {
+            nextSequenceNumber = 1_000_000;
+            for (int i = 0; i < MAXIDCOUNT; i++)
+                addMessageID(nextSequenceNumber++);
+        }
+
+        void addMessageID(int id) {
+            int pos = currentPos % MAXIDCOUNT;
+            idList[pos] = id;
+            currentPos++;
+        }
+
+        boolean isExist(int id) {
+            for (int i = 0; i < idList.length; i++) {
+                if (idList[i] == id)
+                    return true;
+            }
+
+            return false;
+        }
+
+        //как при приеме сообщения: проверка, затем запоминание нового номера
+        boolean accept(int id) {
+            if (isExist(id))
+                return false;
+            addMessageID(id);
+            return true;
+        }
+    }
+
+    @Benchmark
+    public boolean idListAcceptNew(IdList list) {
+        return list.accept(list.nextSequenceNumber++);
+    }
+
+    @Benchmark
+    public boolean idListRejectDuplicate(IdList list) {
+        list.duplicate = (list.duplicate + 7) & 63;
+        return list.accept(list.nextSequenceNumber - 1 - list.duplicate);
+    }
+
+    //отчет о доставке по окну
+    @Benchmark
+    public long buildReport() {
+        return window.getCumulativeAck() + window.getSelectiveAcks();
+    }
+}
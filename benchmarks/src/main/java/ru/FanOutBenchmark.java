@@ -0,0 +1,102 @@
+package ru;
+
+import org.openjdk.jmh.annotations.*;
+import ru.chatpacket.ChatTextMessage;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+// Рассылка одного сообщения N получателям через loopback: сообщение закодировано один раз,
+// для каждого получателя меняется только sequence number, и датаграмма уходит в сокет.
+// Цикл событий не запущен, поэтому его методы отправки вызывает поток бенчмарка.
+// senderMode: event-loop - датаграммы передает сокету сам вызывающий поток, neighbor - они копируются
+// в ящики отправителей соседей (-Dchattree.neighborSenders). В обоих режимах операция завершается, когда каждый
+// получатель принял свою датаграмму, поэтому время включает и работу цикла, и запись в сокет, а буферы сокетов
+// не переполняются. Выброшенная из-за заполненного ящика датаграмма делает результат недействительным,
+// поэтому итерация с ними завершается ошибкой.
+// threads: на каких потоках работают отправители соседей (-Dchattree.neighborThreads), на event-loop не влияет.
+// Виртуальные потоки есть только на Java 21+ (профиль jdk21), на Java 17 запускать с -p threads=platform
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanOutBenchmark {
+    @Param({"1", "8", "64"})
+    int recipients;
+
+    @Param({"16", "1024"})
+    int textLength;
+
+    @Param({"event-loop", "neighbor"})
+    String senderMode;
+
+    @Param({"virtual", "platform"})
+    String threads;
+
+    private ChatMetrics metrics;
+    private EventLoop eventLoop;
+    private DatagramChannel[] receivers;
+    private ChatTextMessage message;
+    private final ByteBuffer drainBuffer = ByteBuffer.allocateDirect(65536);
+
+    @Setup
+    public void setup() throws IOException {
+        System.setProperty("chattree.neighborSenders", String.valueOf(senderMode.equals("neighbor")));
+        System.setProperty("chattree.neighborThreads", threads);
+        metrics = new ChatMetrics();
+        eventLoop = new EventLoop(0, 1460, (datagram, sender) -> {}, metrics);
+        eventLoop.setBatching(false, 0);
+
+        //без виртуальных потоков отправители молча перешли бы на обычные, и результаты подменили бы друг друга
+        String expected = senderMode.equals("neighbor") ? "neighbor-" + threads : "event-loop";
+        if (!expected.equals(eventLoop.getSenderMode())) {
+            eventLoop.stop();
+            throw new IllegalStateException("[ERROR] Sender mode is " + eventLoop.getSenderMode() + " instead of "
+                    + expected + " (virtual threads need Java 21+)");
+        }
+
+        receivers = new DatagramChannel[recipients];
+        Set<Node> nodes = new HashSet<>();
+        for (int i = 0; i < recipients; i++) {
+            receivers[i] = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            receivers[i].configureBlocking(false);
+            nodes.add(new Node(InetAddress.getLoopbackAddress(),
+                    ((InetSocketAddress) receivers[i].getLocalAddress()).getPort()));
+        }
+
+        message = new ChatTextMessage("x".repeat(textLength));
+        message.setRecipient(nodes);
+    }
+
+    @Benchmark
+    public void send() throws IOException {
+        eventLoop.send(message);
+        for (DatagramChannel receiver : receivers) {
+            drainBuffer.clear();
+            while (receiver.receive(drainBuffer) == null)
+                Thread.yield();
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void checkOverflows() {
+        if (metrics.getMailboxOverflows() != 0)
+            throw new IllegalStateException("[ERROR] Datagrams dropped by full mailboxes: " + metrics.getMailboxOverflows());
+    }
+
+    //цикл не запущен, поэтому stop сразу закрывает его сокет (и отправителей соседей)
+    @TearDown
+    public void close() throws IOException {
+        eventLoop.stop();
+        for (DatagramChannel receiver : receivers)
+            receiver.close();
+    }
+}
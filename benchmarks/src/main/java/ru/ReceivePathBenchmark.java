@@ -0,0 +1,141 @@
+package ru;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static ru.chatpacket.ProtocolMagicValues.*;
+
+// Обработка принятой датаграммы узлом: проверка отправителя, окно приема, отчеты о доставке.
+// Датаграммы передаются обработчику узла в потоке его цикла событий пачками по BATCH_SIZE, чтобы передача
+// задачи в цикл почти не влияла на результат. Запуск с -prof gc показывает, сколько байт выделяет
+// обработка одной датаграммы (gc.alloc.rate.norm)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReceivePathBenchmark {
+    private static final int BATCH_SIZE = 1000;
+    private static final MethodHandle DATAGRAM_HANDLER;
+
+    static {
+        try {
+            DATAGRAM_HANDLER = MethodHandles.privateLookupIn(ChatTree.class, MethodHandles.lookup())
+                    .findVirtual(ChatTree.class, "datagramHandler",
+                            MethodType.methodType(void.class, ByteBuffer.class, InetSocketAddress.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private ChatTree chatTree;
+    //сосед, от имени которого приходят датаграммы (его сокет принимает наши отчеты)
+    private DatagramChannel neighbor;
+    private InetSocketAddress neighborAddress;
+
+    private ByteBuffer duplicateText;
+    private ByteBuffer report;
+    private ByteBuffer unknownSender;
+    private InetSocketAddress unknownAddress;
+
+    @Setup
+    public void setup() throws Throwable {
+        chatTree = new ChatTree(new String[]{"benchmark", "0", "0"});
+        neighbor = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        neighborAddress = (InetSocketAddress) neighbor.getLocalAddress();
+        unknownAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), 1);
+
+        //сосед подключается как потомок и присылает первое сообщение
+        int sequenceNumber = 1_000_000;
+        ByteBuffer child = ByteBuffer.allocateDirect(64);
+        child.put(INFO).putInt(sequenceNumber).put(CHILD).putInt(1).put((byte) 'N').put((byte) 0).flip();
+        duplicateText = ByteBuffer.allocateDirect(64);
+        duplicateText.put(TEXT).putInt(sequenceNumber + 1).putInt(2).put((byte) 'h').put((byte) 'i').flip();
+        report = ByteBuffer.allocateDirect(REPORTLEN);
+        report.put(REPORT).putInt(0).putLong(0).flip();
+        unknownSender = duplicateText.duplicate();
+
+        runInEventLoop(() -> {
+            handle(child, neighborAddress);
+            handle(duplicateText, neighborAddress);
+        });
+    }
+
+    //дубликат уже принятого сообщения: отсев по окну и немедленный повторный отчет
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void duplicateText() throws Exception {
+        runInEventLoop(() -> {
+            for (int i = 0; i < BATCH_SIZE; i++)
+                handle(duplicateText, neighborAddress);
+        });
+    }
+
+    //отчет о доставке, который ничего нового не подтверждает
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void report() throws Exception {
+        runInEventLoop(() -> {
+            for (int i = 0; i < BATCH_SIZE; i++)
+                handle(report, neighborAddress);
+        });
+    }
+
+    //датаграмма от узла, которого нет в топологии
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void unknownSender() throws Exception {
+        runInEventLoop(() -> {
+            for (int i = 0; i < BATCH_SIZE; i++)
+                handle(unknownSender, unknownAddress);
+        });
+    }
+
+    //отчеты узла выбрасываем, чтобы буфер соседа не переполнялся
+    @TearDown(Level.Iteration)
+    public void drain() throws IOException {
+        neighbor.configureBlocking(false);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(65536);
+        do {
+            buffer.clear();
+        } while (neighbor.receive(buffer) != null);
+    }
+
+    @TearDown
+    public void close() throws IOException {
+        chatTree.eventLoop.stop();
+        neighbor.close();
+    }
+
+    private void handle(ByteBuffer datagram, InetSocketAddress sender) {
+        try {
+            DATAGRAM_HANDLER.invokeExact(chatTree, datagram, sender);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void runInEventLoop(Runnable task) throws Exception {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        chatTree.eventLoop.execute(() -> {
+            try {
+                task.run();
+                done.complete(null);
+            } catch (RuntimeException e) {
+                done.completeExceptionally(e);
+            }
+        });
+        done.get();
+    }
+}
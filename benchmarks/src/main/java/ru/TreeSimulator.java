@@ -0,0 +1,327 @@
+package ru;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.IntStream;
+
+// Нагрузочный тест дерева узлов в одной JVM.
+// Запускает N узлов ChatTree на loopback (каждый на своем свободном порту), соединяет их в дерево заданной формы,
+// отправляет сообщения с выбранных узлов с заданной частотой и считает, как они доходят до всех остальных узлов:
+// задержку доставки (перцентили), доставленные сообщения в секунду и датаграммы на доставленное сообщение.
+//
+// Запуск (после mvn -B package):
+//   java -cp benchmarks/target/benchmarks.jar ru.TreeSimulator --shape kary --nodes 15 --arity 2 \
+//        --senders leaves --rate 100 --duration 10
+// Параметры:
+//   --shape chain|star|kary  форма дерева (kary - сбалансированное дерево, у каждого узла до arity детей)
+//   --nodes N                количество узлов (15)
+//   --arity K                детей у узла в дереве kary (2)
+//   --senders S              кто отправляет: root, leaves, all или номера узлов через запятую (root)
+//   --rate R                 сообщений в секунду с каждого отправителя (100)
+//   --size B                 длина текста сообщения в байтах (64)
+//   --warmup S               прогрев в секундах, его сообщения не учитываются (2)
+//   --duration S             время измерения в секундах (10)
+//   --drain S                сколько ждать доставки после окончания отправки (10)
+//   --link L                 свойства эмулируемых связей, см. LinkProfile (none), например "delay=5,jitter=2,loss=1"
+//   --seed S                 начальное значение генераторов эмуляции, у узла i - S + i (1)
+//   --port P                 узел i слушает порт P + i (0 - свободные порты; эмуляция повторяется только при
+//                            одинаковых портах, потому что генератор связи зависит от адреса соседа)
+//   --verbose                не скрывать вывод узлов
+// Настройки узлов (окно, подтверждения, пакетирование, обработчики) задаются как обычно, через -Dchattree.*
+public class TreeSimulator {
+    //метка сообщений теста: "sim <время отправки System.nanoTime> <номер>"
+    private static final String MESSAGE_PREFIX = "sim ";
+    //как часто поток отправки проверяет, сколько сообщений уже пора отправить
+    private static final long INJECT_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    enum Shape {
+        CHAIN,
+        STAR,
+        KARY
+    }
+
+    // Задержки доставки, принятые одним узлом (пишет поток цикла событий узла или его обработчики)
+    private static final class LatencyRecorder implements ChatTree.MessageListener {
+        private long[] latencies = new long[1024];
+        private int count = 0;
+        //измерение началось, и с какого времени отправки записываются задержки
+        private volatile boolean measuring = false;
+        private volatile long measureFrom = 0;
+        private volatile long lastDelivery = 0;
+
+        @Override
+        public void onMessage(String senderName, String text) {
+            long now = System.nanoTime();
+            if (!text.startsWith(MESSAGE_PREFIX))
+                return;
+
+            int end = text.indexOf(' ', MESSAGE_PREFIX.length());
+            long sendingTime = Long.parseLong(text.substring(MESSAGE_PREFIX.length(), end));
+            if (!measuring || sendingTime - measureFrom < 0)
+                return;
+
+            synchronized (this) {
+                if (count == latencies.length)
+                    latencies = Arrays.copyOf(latencies, count * 2);
+                latencies[count++] = now - sendingTime;
+            }
+            lastDelivery = now;
+        }
+
+        //флаг ставится после времени: поток, увидевший флаг, увидит и время
+        void startMeasuring(long from) {
+            measureFrom = from;
+            measuring = true;
+        }
+
+        synchronized int getCount() {
+            return count;
+        }
+
+        synchronized long[] getLatencies() {
+            return Arrays.copyOf(latencies, count);
+        }
+    }
+
+    private final Shape shape;
+    private final int nodeCount;
+    private final int arity;
+    private final String sendersSpec;
+    private final int rate;
+    private final int size;
+    private final int warmup;
+    private final int duration;
+    private final int drain;
+    private final String link;
+    private final long seed;
+    private final int basePort;
+
+    private final List<ChatTree> nodes = new ArrayList<>();
+    private final List<LatencyRecorder> recorders = new ArrayList<>();
+    private int[] parents;
+    private int[] senders;
+
+    TreeSimulator(Map<String, String> options) {
+        shape = Shape.valueOf(options.getOrDefault("shape", "kary").toUpperCase());
+        nodeCount = Integer.parseInt(options.getOrDefault("nodes", "15"));
+        arity = Integer.parseInt(options.getOrDefault("arity", "2"));
+        sendersSpec = options.getOrDefault("senders", "root");
+        rate = Integer.parseInt(options.getOrDefault("rate", "100"));
+        size = Integer.parseInt(options.getOrDefault("size", "64"));
+        warmup = Integer.parseInt(options.getOrDefault("warmup", "2"));
+        duration = Integer.parseInt(options.getOrDefault("duration", "10"));
+        drain = Integer.parseInt(options.getOrDefault("drain", "10"));
+        link = options.getOrDefault("link", "none");
+        seed = Long.parseLong(options.getOrDefault("seed", "1"));
+        basePort = Integer.parseInt(options.getOrDefault("port", "0"));
+        LinkProfile.parse(link);
+
+        if (nodeCount < 2 || arity < 1 || rate <= 0 || duration <= 0)
+            throw new IllegalArgumentException("[ERROR] Incorrect simulation parameters!");
+    }
+
+    // Родитель каждого узла (у корня, узла 0, родителя нет)
+    private int[] buildShape() {
+        int[] result = new int[nodeCount];
+        result[0] = -1;
+        for (int i = 1; i < nodeCount; i++) {
+            switch (shape) {
+                case CHAIN -> result[i] = i - 1;
+                case STAR -> result[i] = 0;
+                case KARY -> result[i] = (i - 1) / arity;
+            }
+        }
+        return result;
+    }
+
+    private int[] parseSenders() {
+        switch (sendersSpec) {
+            case "root":
+                return new int[] {0};
+            case "all": {
+                int[] result = new int[nodeCount];
+                for (int i = 0; i < nodeCount; i++)
+                    result[i] = i;
+                return result;
+            }
+            case "leaves": {
+                boolean[] hasChildren = new boolean[nodeCount];
+                for (int i = 1; i < nodeCount; i++)
+                    hasChildren[parents[i]] = true;
+                return IntStream.range(0, nodeCount).filter(i -> !hasChildren[i]).toArray();
+            }
+            default: {
+                int[] result = Arrays.stream(sendersSpec.split(",")).mapToInt(Integer::parseInt).toArray();
+                for (int sender : result) {
+                    if (sender < 0 || sender >= nodeCount)
+                        throw new IllegalArgumentException("[ERROR] Incorrect sender node: " + sender);
+                }
+                return result;
+            }
+        }
+    }
+
+    // Создание узлов: сначала корень, затем каждый узел подключается к уже созданному родителю
+    private void buildTree() {
+        parents = buildShape();
+        senders = parseSenders();
+
+        for (int i = 0; i < nodeCount; i++) {
+            String name = "node" + i;
+            String port = String.valueOf(basePort > 0 ? basePort + i : 0);
+            String[] args = parents[i] < 0
+                    ? new String[] {name, port, link}
+                    : new String[] {name, port, link, "127.0.0.1",
+                            String.valueOf(nodes.get(parents[i]).getPort())};
+
+            ChatTree node = new ChatTree(args);
+            LatencyRecorder recorder = new LatencyRecorder();
+            node.setMessageListener(recorder);
+            node.setLinkSeed(seed + i);
+            nodes.add(node);
+            recorders.add(recorder);
+            node.connect();
+        }
+    }
+
+    // Отправка сообщений с частотой rate с каждого отправителя до момента until.
+    // Вернет количество отправленных сообщений
+    private long inject(long until, String padding) {
+        long start = System.nanoTime();
+        long sent = 0;
+        long due;
+        long now;
+        while ((now = System.nanoTime()) - until < 0) {
+            due = (now - start) * rate / TimeUnit.SECONDS.toNanos(1);
+            for (; sent < due; sent++) {
+                for (int sender : senders) {
+                    String header = MESSAGE_PREFIX + System.nanoTime() + ' ' + sent + ' ';
+                    String text = header.length() < size ? header + padding.substring(header.length()) : header;
+                    nodes.get(sender).sendMessage(text);
+                }
+            }
+            LockSupport.parkNanos(INJECT_TICK_NANOS);
+        }
+        return sent * senders.length;
+    }
+
+    private long delivered() {
+        long result = 0;
+        for (LatencyRecorder recorder : recorders)
+            result += recorder.getCount();
+        return result;
+    }
+
+    private long datagramsSent() {
+        long result = 0;
+        for (ChatTree node : nodes)
+            result += node.getMetrics().getDatagramsSent();
+        return result;
+    }
+
+    void run(PrintStream report) {
+        buildTree();
+
+        //сообщения дополняются до size байт
+        String padding = "x".repeat(size);
+
+        //прогрев: задержки этих сообщений получатели не записывают
+        inject(System.nanoTime() + TimeUnit.SECONDS.toNanos(warmup), padding);
+        //даем доставить сообщения прогрева, чтобы их датаграммы не попали в измерение
+        LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+
+        long measureFrom = System.nanoTime();
+        for (LatencyRecorder recorder : recorders)
+            recorder.startMeasuring(measureFrom);
+        long datagramsBefore = datagramsSent();
+
+        long sent = inject(measureFrom + TimeUnit.SECONDS.toNanos(duration), padding);
+        long expected = sent * (nodeCount - 1);
+
+        //ждем, пока все сообщения дойдут (или закончится время ожидания)
+        long drainUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(drain);
+        while (delivered() < expected && System.nanoTime() - drainUntil < 0)
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+
+        long datagrams = datagramsSent() - datagramsBefore;
+        long lastDelivery = measureFrom;
+        List<long[]> latencyParts = new ArrayList<>();
+        int total = 0;
+        for (LatencyRecorder recorder : recorders) {
+            long[] part = recorder.getLatencies();
+            latencyParts.add(part);
+            total += part.length;
+            lastDelivery = Math.max(lastDelivery, recorder.lastDelivery);
+        }
+
+        long[] latencies = new long[total];
+        int position = 0;
+        for (long[] part : latencyParts) {
+            System.arraycopy(part, 0, latencies, position, part.length);
+            position += part.length;
+        }
+        Arrays.sort(latencies);
+
+        for (ChatTree node : nodes)
+            node.close();
+
+        double seconds = Math.max(lastDelivery - measureFrom, 1) / 1e9;
+        report.printf("tree: %s, %d nodes%s, senders %s, %d msg/s each, %d bytes, link %s, seed %d%n", shape,
+                nodeCount, shape == Shape.KARY ? ", arity " + arity : "", Arrays.toString(senders), rate, size, link,
+                seed);
+        report.printf("messages sent: %d, deliveries expected: %d, delivered: %d (%.2f%%)%n", sent, expected, total,
+                expected == 0 ? 0 : 100.0 * total / expected);
+        report.printf("delivered messages/s: %.1f%n", total / seconds);
+        report.printf("datagrams per delivered message: %.3f (%d datagrams)%n",
+                total == 0 ? 0 : (double) datagrams / total, datagrams);
+        report.printf("latency ms: p50=%.3f p90=%.3f p99=%.3f p99.9=%.3f max=%.3f%n",
+                percentile(latencies, 50), percentile(latencies, 90), percentile(latencies, 99),
+                percentile(latencies, 99.9), percentile(latencies, 100));
+        for (int i = 0; i < nodeCount; i++)
+            report.println("node" + i + ": " + nodes.get(i).getMetrics());
+    }
+
+    //перцентиль отсортированных задержек в миллисекундах
+    private static double percentile(long[] sorted, double percent) {
+        if (sorted.length == 0)
+            return 0;
+        int index = (int) Math.ceil(percent / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+    }
+
+    public static void main(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        boolean verbose = false;
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--"))
+                throw new IllegalArgumentException("[ERROR] Unknown argument: " + args[i]);
+            String key = args[i].substring(2);
+            if (key.equals("verbose"))
+                verbose = true;
+            else if (i + 1 < args.length)
+                options.put(key, args[++i]);
+            else
+                throw new IllegalArgumentException("[ERROR] Need a value for " + args[i]);
+        }
+
+        TreeSimulator simulator = new TreeSimulator(options);
+        PrintStream report = System.out;
+        //узлы печатают подключения и ошибки в консоль, в отчет они не попадают
+        if (!verbose)
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            simulator.run(report);
+        } finally {
+            System.setOut(report);
+        }
+        //потоки узлов завершаются не сразу
+        System.exit(0);
+    }
+}
@@ -0,0 +1,111 @@
+package ru;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Номера, доставку по которым узел прекратил, не останавливают связь: после отказа от доставки
+// (исчерпаны попытки отправки или сообщение выброшено политикой бюджета) новые сообщения соседу
+// подтверждаются, а не ждут за брошенными номерами
+class AbandonedSequenceTest {
+    //сообщения, которые теряются и бросаются, и сообщения после восстановления связи
+    private static final int LOST_MESSAGES = 100;
+    private static final int MESSAGES_AFTER_RECOVERY = 150;
+    //бюджет, в который помещается около 20 коротких сообщений
+    private static final long SMALL_BUDGET = 20 * 320;
+    private static final long TIMEOUT_MILLIS = 10_000;
+
+    private ChatTree parent;
+    private ChatTree child;
+    private InetSocketAddress parentAddress;
+    private final AtomicInteger received = new AtomicInteger();
+
+    @AfterEach
+    void tearDown() {
+        child.close();
+        parent.close();
+    }
+
+    @Test
+    void giveUpIsFollowedByAcknowledgedTraffic() throws InterruptedException {
+        //несколько попыток отправки, чтобы отказ от доставки наступил быстро
+        connect(3);
+
+        //потомок не получает ничего: родитель исчерпывает попытки и бросает все сообщения
+        child.setLinkProfile(parentAddress, LinkProfile.parse("100"));
+        for (int i = 0; i < LOST_MESSAGES; i++)
+            parent.sendMessage("lost " + i);
+        awaitCondition("lost messages are given up", () -> parent.waitingReport.size() == 0);
+        assertTrue(parent.getMetrics().getDeliveryGiveUps() > 0);
+        //сообщения, которые ждали места в окне, сброшены вместе с недоступной связью
+        assertTrue(parent.getMetrics().getQueuedMessagesDiscarded() > 0);
+
+        child.setLinkProfile(parentAddress, LinkProfile.NONE);
+        assertRecoveryTrafficAcknowledged();
+    }
+
+    @Test
+    void droppedMessagesAreFollowedByAcknowledgedTraffic() throws InterruptedException {
+        //попыток хватает на все время теста: номера бросает только политика DROP_OLDEST_TEXT
+        connect(10);
+
+        //сообщения не доходят и не помещаются в бюджет: самые старые (уже отправленные) выбрасываются
+        child.setLinkProfile(parentAddress, LinkProfile.parse("100"));
+        parent.setOutboundBudget(SMALL_BUDGET, OutboundBudget.Policy.DROP_OLDEST_TEXT);
+        for (int i = 0; i < LOST_MESSAGES; i++)
+            parent.sendMessage("lost " + i);
+        awaitCondition("old messages are dropped", () -> parent.getPendingOutboundBytes() <= SMALL_BUDGET);
+        assertTrue(parent.getMetrics().getMessagesDropped() > 0);
+        assertEquals(0, parent.getMetrics().getDeliveryGiveUps());
+
+        //оставшиеся сообщения доставляются после восстановления связи
+        parent.setOutboundBudget(0, OutboundBudget.Policy.DROP_OLDEST_TEXT);
+        child.setLinkProfile(parentAddress, LinkProfile.NONE);
+        awaitCondition("remaining messages are acknowledged", () -> parent.waitingReport.size() == 0);
+        received.set(0);
+        assertRecoveryTrafficAcknowledged();
+    }
+
+    // Родитель и потомок на loopback, maxSendCount - сколько раз родитель отправляет сообщение до отказа
+    private void connect(int maxSendCount) {
+        System.setProperty("chattree.maxSendCount", String.valueOf(maxSendCount));
+        try {
+            parent = new ChatTree(new String[]{"parent", "0", "0"});
+            child = new ChatTree(new String[]{"child", "0", "0", "127.0.0.1", String.valueOf(parent.getPort())});
+        } finally {
+            System.clearProperty("chattree.maxSendCount");
+        }
+        parentAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), parent.getPort());
+        child.setMessageListener((senderName, text) -> received.incrementAndGet());
+        child.connect();
+    }
+
+    //связь восстановлена: все новые сообщения доставлены и подтверждены без отказов от доставки
+    private void assertRecoveryTrafficAcknowledged() throws InterruptedException {
+        Node childNode = parent.currentNodeTopology.getSnapshot().getChildrens().iterator().next();
+        long giveUps = parent.getMetrics().getDeliveryGiveUps();
+        for (int i = 0; i < MESSAGES_AFTER_RECOVERY; i++)
+            parent.sendMessage("message " + i);
+
+        awaitCondition("messages after recovery are delivered", () -> received.get() == MESSAGES_AFTER_RECOVERY);
+        awaitCondition("messages after recovery are acknowledged", () -> parent.waitingReport.size() == 0);
+        assertEquals(giveUps, parent.getMetrics().getDeliveryGiveUps());
+        assertEquals(0, childNode.getInFlight());
+        assertTrue(parent.getMetrics().getSkipsSent() > 0);
+    }
+
+    private static void awaitCondition(String description, BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out: " + description);
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package ru;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static ru.chatpacket.ProtocolMagicValues.*;
+
+// Прием датаграмм в установившемся режиме не создает объектов: обработчик узла вызывается в потоке его цикла
+// событий, и счетчик выделенной потоком памяти (com.sun.management.ThreadMXBean) после прогрева
+// почти не растет. Граница на вызов оставляет место только для случайных выделений JVM
+class ReceivePathAllocationTest {
+    private static final int WARMUP_CALLS = 50_000;
+    private static final int MEASURED_CALLS = 100_000;
+    //допустимое среднее число байт на датаграмму
+    private static final double MAX_BYTES_PER_CALL = 1.0;
+
+    private static final MethodHandle DATAGRAM_HANDLER;
+
+    static {
+        try {
+            DATAGRAM_HANDLER = MethodHandles.privateLookupIn(ChatTree.class, MethodHandles.lookup())
+                    .findVirtual(ChatTree.class, "datagramHandler",
+                            MethodType.methodType(void.class, ByteBuffer.class, InetSocketAddress.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private ChatTree chatTree;
+    //сосед, от имени которого приходят датаграммы (его сокет принимает отчеты узла)
+    private DatagramChannel neighbor;
+    private InetSocketAddress neighborAddress;
+    private final ByteBuffer drainBuffer = ByteBuffer.allocateDirect(65536);
+
+    @BeforeEach
+    void setUp() throws Exception {
+        chatTree = new ChatTree(new String[]{"test", "0", "0"});
+        chatTree.setQuiet(true);
+        neighbor = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        neighbor.configureBlocking(false);
+        neighborAddress = (InetSocketAddress) neighbor.getLocalAddress();
+
+        //сосед подключается как потомок
+        ByteBuffer child = ByteBuffer.allocateDirect(64);
+        child.put(INFO).putInt(1_000_000).put(CHILD).putInt(1).put((byte) 'N').put((byte) 0).flip();
+        runInEventLoop(() -> handle(child, neighborAddress));
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        chatTree.eventLoop.stop();
+        neighbor.close();
+    }
+
+    //дубликат уже принятого сообщения: отсев по окну и немедленный повторный отчет
+    @Test
+    void duplicateTextDoesNotAllocate() throws Exception {
+        ByteBuffer text = ByteBuffer.allocateDirect(64);
+        text.put(TEXT).putInt(1_000_001).putInt(2).put((byte) 'h').put((byte) 'i').flip();
+        runInEventLoop(() -> handle(text, neighborAddress));
+
+        assertAllocationFree("duplicate TEXT", text, neighborAddress);
+    }
+
+    //отчет о доставке, который ничего нового не подтверждает
+    @Test
+    void reportDoesNotAllocate() throws Exception {
+        ByteBuffer report = ByteBuffer.allocateDirect(REPORTLEN);
+        report.put(REPORT).putInt(0).putLong(0).flip();
+
+        assertAllocationFree("REPORT", report, neighborAddress);
+    }
+
+    //датаграмма от узла, которого нет в топологии
+    @Test
+    void unknownSenderDoesNotAllocate() throws Exception {
+        ByteBuffer text = ByteBuffer.allocateDirect(64);
+        text.put(TEXT).putInt(5).putInt(2).put((byte) 'h').put((byte) 'i').flip();
+
+        assertAllocationFree("unknown sender", text, new InetSocketAddress(InetAddress.getLoopbackAddress(), 1));
+    }
+
+    private void assertAllocationFree(String name, ByteBuffer datagram, InetSocketAddress sender) throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assertTrue(threads.isThreadAllocatedMemorySupported(), "JVM doesn't count allocated memory per thread");
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        callInEventLoop(() -> {
+            handleRepeatedly(datagram, sender, WARMUP_CALLS);
+            return 0;
+        });
+        long allocated = callInEventLoop(() -> {
+            long before = threads.getCurrentThreadAllocatedBytes();
+            handleRepeatedly(datagram, sender, MEASURED_CALLS);
+            return threads.getCurrentThreadAllocatedBytes() - before;
+        });
+
+        double perCall = (double) allocated / MEASURED_CALLS;
+        assertTrue(perCall <= MAX_BYTES_PER_CALL,
+                String.format("%s: %.2f bytes allocated per datagram (%d bytes in %d calls)", name, perCall,
+                        allocated, MEASURED_CALLS));
+    }
+
+    //отчеты узла выбрасываем по ходу, чтобы буфер сокета соседа не переполнялся
+    private void handleRepeatedly(ByteBuffer datagram, InetSocketAddress sender, int calls) {
+        for (int i = 0; i < calls; i++) {
+            handle(datagram, sender);
+            if ((i & 255) == 0)
+                drainNeighbor();
+        }
+        drainNeighbor();
+    }
+
+    private void drainNeighbor() {
+        try {
+            do {
+                drainBuffer.clear();
+            } while (neighbor.receive(drainBuffer) != null);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    //обработчик читает датаграмму по абсолютным смещениям, поэтому буфер передается сам (его копия была бы выделением)
+    private void handle(ByteBuffer datagram, InetSocketAddress sender) {
+        try {
+            DATAGRAM_HANDLER.invokeExact(chatTree, datagram, sender);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void runInEventLoop(Runnable task) throws Exception {
+        callInEventLoop(() -> {
+            task.run();
+            return 0;
+        });
+    }
+
+    private long callInEventLoop(LongSupplier task) throws Exception {
+        CompletableFuture<Long> done = new CompletableFuture<>();
+        chatTree.eventLoop.execute(() -> {
+            try {
+                done.complete(task.getAsLong());
+            } catch (RuntimeException e) {
+                done.completeExceptionally(e);
+            }
+        });
+        return done.get(60, TimeUnit.SECONDS);
+    }
+}
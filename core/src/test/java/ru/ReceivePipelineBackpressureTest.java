@@ -0,0 +1,69 @@
+package ru;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Потоки-обработчики с маленьким кольцом: цикл событий останавливает чтение, когда кольцо заполнено,
+// задерживает не принятые кадры до освобождения места, и все сообщения доставляются ровно один раз
+class ReceivePipelineBackpressureTest {
+    private static final int MESSAGES = 500;
+    private static final long TIMEOUT_MILLIS = 30_000;
+
+    private ChatTree parent;
+    private ChatTree child;
+    private final AtomicInteger received = new AtomicInteger();
+
+    @AfterEach
+    void tearDown() {
+        child.close();
+        parent.close();
+    }
+
+    @Test
+    void fullRingPausesReadingWithoutLosingMessages() throws InterruptedException {
+        System.setProperty("chattree.workers", "2");
+        System.setProperty("chattree.pipelineQueue", "2");
+        try {
+            parent = new ChatTree(new String[]{"parent", "0", "0"});
+            child = new ChatTree(new String[]{"child", "0", "0", "127.0.0.1", String.valueOf(parent.getPort())});
+        } finally {
+            System.clearProperty("chattree.workers");
+            System.clearProperty("chattree.pipelineQueue");
+        }
+        //обработчик потомка медленный, чтобы кольцо заполнялось
+        child.setMessageListener((senderName, text) -> {
+            received.incrementAndGet();
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        child.connect();
+        awaitCondition("child is connected", () -> parent.currentNodeTopology.getSnapshot().getChildrens().size() == 1);
+
+        for (int i = 0; i < MESSAGES; i++)
+            parent.sendMessage("message " + i);
+
+        awaitCondition("messages are delivered", () -> received.get() >= MESSAGES);
+        awaitCondition("messages are acknowledged", () -> parent.waitingReport.size() == 0);
+        assertEquals(MESSAGES, received.get());
+        //кадры, не поместившиеся в кольцо, задержаны циклом потомка, а не потеряны
+        assertTrue(child.getMetrics().getReadPauses() > 0);
+        assertEquals(0, child.getMetrics().getFramesDeferred());
+    }
+
+    private static void awaitCondition(String description, BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out: " + description);
+            Thread.sleep(10);
+        }
+    }
+}
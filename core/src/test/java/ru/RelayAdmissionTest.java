@@ -0,0 +1,145 @@
+package ru;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static ru.chatpacket.ProtocolMagicValues.*;
+
+// Пересылка, которую отклонил бюджет исходящих сообщений, ничего не оставляет после себя:
+// буфер кадра возвращается в пул (не остается в датаграммах цикла), а номер на связи с получателем не расходуется
+class RelayAdmissionTest {
+    private static final long TIMEOUT_MILLIS = 5_000;
+    private static final VarHandle DATAGRAMS;
+
+    static {
+        try {
+            DATAGRAMS = MethodHandles.privateLookupIn(EventLoop.class, MethodHandles.lookup())
+                    .findVarHandle(EventLoop.class, "datagrams", Map.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private ChatTree chatTree;
+    private InetSocketAddress nodeAddress;
+    //потомки узла: sender пишет сообщения, recipient получает их пересылку
+    private DatagramChannel sender;
+    private DatagramChannel recipient;
+    private int senderSequenceNumber = 1_000_000;
+    private final ByteBuffer buffer = ByteBuffer.allocate(2048);
+
+    @BeforeEach
+    void setUp() throws IOException {
+        chatTree = new ChatTree(new String[]{"relay", "0", "0"});
+        chatTree.setQuiet(true);
+        chatTree.setBatching(false, 0);
+        //любое неподтвержденное сообщение заполняет бюджет, следующее отклоняется
+        chatTree.setOutboundBudget(1, OutboundBudget.Policy.REJECT);
+        nodeAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), chatTree.getPort());
+
+        sender = connectChild();
+        recipient = connectChild();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        chatTree.close();
+        sender.close();
+        recipient.close();
+    }
+
+    @Test
+    void rejectedRelayLeavesNoDatagramAndNoSequenceGap() throws Exception {
+        //первое сообщение пересылается и ждет подтверждения получателя
+        sendText();
+        int firstSequenceNumber = receive(recipient, TEXT).getInt(SEQNUMPOS);
+        assertEquals(1, datagramCount());
+
+        //второе не помещается в бюджет
+        long rejected = chatTree.getMetrics().getMessagesRejected();
+        sendText();
+        awaitRejected(rejected + 1);
+        assertEquals(1, datagramCount());
+
+        //после подтверждения первого следующее сообщение получает следующий номер на связи
+        sendReport(recipient, firstSequenceNumber);
+        awaitPendingBytes(0);
+        sendText();
+        assertEquals(firstSequenceNumber + 1, receive(recipient, TEXT).getInt(SEQNUMPOS));
+        assertEquals(1, datagramCount());
+    }
+
+    // Потомок подключается к узлу: CHILD и подтверждение ответного PARENT (иначе рукопожатие заняло бы бюджет)
+    private DatagramChannel connectChild() throws IOException {
+        DatagramChannel child = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        child.configureBlocking(false);
+
+        ByteBuffer info = ByteBuffer.allocate(64);
+        info.put(INFO).putInt(senderSequenceNumber).put(CHILD).putInt(1).put((byte) 'c').put((byte) 0).flip();
+        child.send(info, nodeAddress);
+        sendReport(child, receive(child, INFO).getInt(SEQNUMPOS));
+        awaitPendingBytes(0);
+        return child;
+    }
+
+    private void sendText() throws IOException {
+        ByteBuffer text = ByteBuffer.allocate(64);
+        text.put(TEXT).putInt(++senderSequenceNumber).putInt(2).put((byte) 'h').put((byte) 'i').flip();
+        sender.send(text, nodeAddress);
+    }
+
+    private void sendReport(DatagramChannel child, int cumulativeAck) throws IOException {
+        ByteBuffer report = ByteBuffer.allocate(REPORTLEN);
+        report.put(REPORT).putInt(cumulativeAck).putLong(0).flip();
+        child.send(report, nodeAddress);
+    }
+
+    //первая датаграмма типа type, пришедшая потомку (отчеты узла пропускаются)
+    private ByteBuffer receive(DatagramChannel child, byte type) throws IOException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        for (;;) {
+            buffer.clear();
+            if (child.receive(buffer) != null && (buffer.get(MSGTYPEPOS) & MSGTYPEMASK) == type) {
+                buffer.flip();
+                return buffer;
+            }
+            assertTrue(System.currentTimeMillis() < deadline, "no datagram of type " + type);
+            Thread.onSpinWait();
+        }
+    }
+
+    private void awaitRejected(long rejected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (chatTree.getMetrics().getMessagesRejected() < rejected) {
+            assertTrue(System.currentTimeMillis() < deadline, "relay is not rejected");
+            Thread.sleep(1);
+        }
+    }
+
+    private void awaitPendingBytes(long bytes) {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (chatTree.getPendingOutboundBytes() != bytes)
+            assertTrue(System.currentTimeMillis() < deadline, "pending bytes: " + chatTree.getPendingOutboundBytes());
+    }
+
+    //сколько закодированных датаграмм хранит цикл событий (читается в потоке цикла)
+    private int datagramCount() throws Exception {
+        CompletableFuture<Integer> count = new CompletableFuture<>();
+        chatTree.eventLoop.execute(() -> count.complete(((Map<?, ?>) DATAGRAMS.get(chatTree.eventLoop)).size()));
+        return count.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+}
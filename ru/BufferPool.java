@@ -0,0 +1,62 @@
+package ru;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+// Пул переиспользуемых direct-буферов для исходящих датаграмм.
+// Буферы разбиты на классы по размеру, буфер берется из наименьшего подходящего класса.
+// Пул не потокобезопасный: им пользуется только поток цикла событий.
+public class BufferPool {
+    //размеры буферов в классах (последний - максимальный размер датаграммы UDP)
+    private static final int[] BUFFER_SIZES = {256, 2048, 65536};
+    //сколько свободных буферов каждого класса храним, остальные отдаем сборщику мусора
+    private static final int MAX_FREE_BUFFERS = 256;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final ArrayDeque<ByteBuffer>[] freeBuffers = new ArrayDeque[BUFFER_SIZES.length];
+
+    public BufferPool() {
+        for (int i = 0; i < freeBuffers.length; i++)
+            freeBuffers[i] = new ArrayDeque<>();
+    }
+
+    //получение буфера, в который поместится size байт (буфер очищен)
+    public ByteBuffer acquire(int size) {
+        int sizeClass = sizeClass(size);
+        if (sizeClass < 0)
+            throw new IllegalArgumentException("[ERROR] Datagram is too long: " + size);
+
+        ByteBuffer buffer = freeBuffers[sizeClass].poll();
+        if (buffer == null)
+            buffer = ByteBuffer.allocateDirect(BUFFER_SIZES[sizeClass]);
+
+        buffer.clear();
+        return buffer;
+    }
+
+    //возврат буфера в пул
+    public void release(ByteBuffer buffer) {
+        for (int i = 0; i < BUFFER_SIZES.length; i++) {
+            if (buffer.capacity() == BUFFER_SIZES[i]) {
+                if (freeBuffers[i].size() < MAX_FREE_BUFFERS)
+                    freeBuffers[i].push(buffer);
+                return;
+            }
+        }
+    }
+
+    //емкость буфера, который пул выдаст под size байт (память, которую займет датаграмма)
+    public static int bufferSize(int size) {
+        int sizeClass = sizeClass(size);
+        return sizeClass < 0 ? size : BUFFER_SIZES[sizeClass];
+    }
+
+    private static int sizeClass(int size) {
+        for (int i = 0; i < BUFFER_SIZES.length; i++) {
+            if (size <= BUFFER_SIZES[i])
+                return i;
+        }
+
+        return -1;
+    }
+}
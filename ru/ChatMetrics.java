@@ -0,0 +1,327 @@
+package ru;
+
+import java.net.SocketAddress;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Счетчики работы узла. Обновляются из потока цикла событий (и пользовательского потока),
+// читаются из любого потока без блокировок
+public class ChatMetrics {
+    // Датаграммы и байты, отправленные соседу и принятые от него
+    public static final class NeighborCounters {
+        final LongAdder datagramsSent = new LongAdder();
+        final LongAdder bytesSent = new LongAdder();
+        final LongAdder datagramsReceived = new LongAdder();
+        final LongAdder bytesReceived = new LongAdder();
+
+        public long getDatagramsSent() {
+            return datagramsSent.sum();
+        }
+
+        public long getBytesSent() {
+            return bytesSent.sum();
+        }
+
+        public long getDatagramsReceived() {
+            return datagramsReceived.sum();
+        }
+
+        public long getBytesReceived() {
+            return bytesReceived.sum();
+        }
+    }
+
+    //сколько адресов считаем отдельно (датаграммы от остальных попадают в общий счетчик otherNeighbors)
+    private static final int MAX_NEIGHBORS = 1024;
+
+    //датаграммы, которые узел отправил (вместе с повторными отправками, отчетами и BATCH) и принял, и их байты
+    final LongAdder datagramsSent = new LongAdder();
+    final LongAdder datagramsReceived = new LongAdder();
+    final LongAdder bytesSent = new LongAdder();
+    final LongAdder bytesReceived = new LongAdder();
+    //счетчики по соседям (по адресу)
+    private final Map<SocketAddress, NeighborCounters> neighbors = new ConcurrentHashMap<>();
+    private final NeighborCounters otherNeighbors = new NeighborCounters();
+    //повторные отправки сообщений и получатели, доставку которым прекратили после MAX_SEND_COUNT попыток
+    final LongAdder retransmissions = new LongAdder();
+    final LongAdder deliveryGiveUps = new LongAdder();
+    //время от первой отправки сообщения соседу до его подтверждения и время обработки одной датаграммы, нс
+    final LatencyHistogram ackLatency = new LatencyHistogram();
+    final LatencyHistogram handlerTime = new LatencyHistogram();
+    //эмуляция сети: потерянные, продублированные и переупорядоченные входящие датаграммы
+    final LongAdder datagramsLostByEmulator = new LongAdder();
+    final LongAdder datagramsDuplicatedByEmulator = new LongAdder();
+    final LongAdder datagramsReorderedByEmulator = new LongAdder();
+    //принятые от соседей новые сообщения, которые нужно подтвердить
+    final LongAdder messagesAcknowledged = new LongAdder();
+    //дубликаты, пришедшие повторно (на них отвечаем отчетом сразу)
+    final LongAdder duplicatesReceived = new LongAdder();
+    //фрагменты, которые сборщику некуда было сохранить (не подтверждены, отправитель их повторит)
+    final LongAdder fragmentsDeferred = new LongAdder();
+    //сколько раз цикл останавливал чтение сокета, потому что кольцо потока-обработчика заполнено, и кадры,
+    //которые цикл не смог задержать до возобновления чтения (не подтверждены, отправитель их повторит)
+    final LongAdder framesDeferred = new LongAdder();
+    final LongAdder readPauses = new LongAdder();
+    //отправленные датаграммы отчетов о доставке
+    final LongAdder reportsSent = new LongAdder();
+    //отчеты, отправленные по таймеру отложенного подтверждения, а не по порогу
+    final LongAdder delayedReportsSent = new LongAdder();
+    //принятые отчеты о доставке
+    final LongAdder reportsReceived = new LongAdder();
+    //сообщения SKIP: сосед не получил сообщения, доставку которых мы прекратили
+    final LongAdder skipsSent = new LongAdder();
+    //отправленные датаграммы BATCH и упакованные в них сообщения
+    final LongAdder batchesSent = new LongAdder();
+    final LongAdder framesBatched = new LongAdder();
+    //сжатые тексты, их размер до и после сжатия, тексты, которые сжимать не стали, и время сжатия/распаковки
+    final LongAdder compressedPayloads = new LongAdder();
+    final LongAdder bytesBeforeCompression = new LongAdder();
+    final LongAdder bytesAfterCompression = new LongAdder();
+    final LongAdder incompressiblePayloads = new LongAdder();
+    final LongAdder rawPayloads = new LongAdder();
+    final LongAdder compressionNanos = new LongAdder();
+    final LongAdder decompressionNanos = new LongAdder();
+    //сообщения, которые ждали места в окне отправки, уменьшения окна из-за потерь
+    //и сообщения из очереди окна, доставку которых прекратили (сосед недоступен)
+    final LongAdder messagesQueuedByWindow = new LongAdder();
+    final LongAdder sendWindowReductions = new LongAdder();
+    final LongAdder queuedMessagesDiscarded = new LongAdder();
+    //датаграммы, выброшенные из-за заполненного ящика отправителя соседа
+    final LongAdder mailboxOverflows = new LongAdder();
+    //бюджет памяти исходящих сообщений: отклоненные и выброшенные текстовые сообщения,
+    //сколько раз и сколько времени отправители ждали места
+    final LongAdder messagesRejected = new LongAdder();
+    final LongAdder messagesDropped = new LongAdder();
+    final LongAdder producerBlocks = new LongAdder();
+    final LongAdder producerBlockedNanos = new LongAdder();
+
+    public long getDatagramsSent() {
+        return datagramsSent.sum();
+    }
+
+    public long getDatagramsReceived() {
+        return datagramsReceived.sum();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    public long getRetransmissions() {
+        return retransmissions.sum();
+    }
+
+    public long getDeliveryGiveUps() {
+        return deliveryGiveUps.sum();
+    }
+
+    public LatencyHistogram getAckLatency() {
+        return ackLatency;
+    }
+
+    public LatencyHistogram getHandlerTime() {
+        return handlerTime;
+    }
+
+    //отправка датаграммы размером length байт соседу target
+    void onDatagramSent(SocketAddress target, int length) {
+        datagramsSent.increment();
+        bytesSent.add(length);
+        NeighborCounters counters = neighbor(target);
+        counters.datagramsSent.increment();
+        counters.bytesSent.add(length);
+    }
+
+    //прием датаграммы размером length байт от соседа sender
+    void onDatagramReceived(SocketAddress sender, int length) {
+        datagramsReceived.increment();
+        bytesReceived.add(length);
+        NeighborCounters counters = neighbor(sender);
+        counters.datagramsReceived.increment();
+        counters.bytesReceived.add(length);
+    }
+
+    private NeighborCounters neighbor(SocketAddress address) {
+        NeighborCounters counters = neighbors.get(address);
+        if (counters != null)
+            return counters;
+        if (neighbors.size() >= MAX_NEIGHBORS)
+            return otherNeighbors;
+        return neighbors.computeIfAbsent(address, key -> new NeighborCounters());
+    }
+
+    //счетчики по соседям (только для чтения)
+    public Map<SocketAddress, NeighborCounters> getNeighbors() {
+        return Collections.unmodifiableMap(neighbors);
+    }
+
+    //счетчики адресов, которые не поместились в таблицу соседей
+    public NeighborCounters getOtherNeighbors() {
+        return otherNeighbors;
+    }
+
+    public long getDatagramsLostByEmulator() {
+        return datagramsLostByEmulator.sum();
+    }
+
+    public long getDatagramsDuplicatedByEmulator() {
+        return datagramsDuplicatedByEmulator.sum();
+    }
+
+    public long getDatagramsReorderedByEmulator() {
+        return datagramsReorderedByEmulator.sum();
+    }
+
+    public long getMessagesAcknowledged() {
+        return messagesAcknowledged.sum();
+    }
+
+    public long getDuplicatesReceived() {
+        return duplicatesReceived.sum();
+    }
+
+    public long getFragmentsDeferred() {
+        return fragmentsDeferred.sum();
+    }
+
+    public long getFramesDeferred() {
+        return framesDeferred.sum();
+    }
+
+    public long getReadPauses() {
+        return readPauses.sum();
+    }
+
+    public long getReportsSent() {
+        return reportsSent.sum();
+    }
+
+    public long getDelayedReportsSent() {
+        return delayedReportsSent.sum();
+    }
+
+    public long getReportsReceived() {
+        return reportsReceived.sum();
+    }
+
+    public long getSkipsSent() {
+        return skipsSent.sum();
+    }
+
+    public long getBatchesSent() {
+        return batchesSent.sum();
+    }
+
+    public long getFramesBatched() {
+        return framesBatched.sum();
+    }
+
+    public long getCompressedPayloads() {
+        return compressedPayloads.sum();
+    }
+
+    //сколько байт сэкономило сжатие (на одного получателя)
+    public long getBytesSavedByCompression() {
+        return bytesBeforeCompression.sum() - bytesAfterCompression.sum();
+    }
+
+    //тексты, отправленные без сжатия: короткие (raw) и те, что не удалось сжать
+    public long getRawPayloads() {
+        return rawPayloads.sum();
+    }
+
+    public long getIncompressiblePayloads() {
+        return incompressiblePayloads.sum();
+    }
+
+    public long getCompressionNanos() {
+        return compressionNanos.sum();
+    }
+
+    public long getDecompressionNanos() {
+        return decompressionNanos.sum();
+    }
+
+    public long getMessagesQueuedByWindow() {
+        return messagesQueuedByWindow.sum();
+    }
+
+    public long getSendWindowReductions() {
+        return sendWindowReductions.sum();
+    }
+
+    public long getQueuedMessagesDiscarded() {
+        return queuedMessagesDiscarded.sum();
+    }
+
+    public long getMailboxOverflows() {
+        return mailboxOverflows.sum();
+    }
+
+    public long getMessagesRejected() {
+        return messagesRejected.sum();
+    }
+
+    public long getMessagesDropped() {
+        return messagesDropped.sum();
+    }
+
+    public long getProducerBlocks() {
+        return producerBlocks.sum();
+    }
+
+    public long getProducerBlockedNanos() {
+        return producerBlockedNanos.sum();
+    }
+
+    //степень сжатия: размер после сжатия / размер до сжатия
+    public double getCompressionRatio() {
+        long before = bytesBeforeCompression.sum();
+        return before == 0 ? 1 : (double) bytesAfterCompression.sum() / before;
+    }
+
+    //доля дубликатов среди принятых сообщений
+    public double getDuplicateRate() {
+        long duplicates = duplicatesReceived.sum();
+        long received = messagesAcknowledged.sum() + duplicates;
+        return received == 0 ? 0 : (double) duplicates / received;
+    }
+
+    //сколько подтвержденных сообщений приходится на одну датаграмму отчета
+    public double getAcksPerReport() {
+        long reports = reportsSent.sum();
+        return reports == 0 ? 0 : (double) messagesAcknowledged.sum() / reports;
+    }
+
+    //сколько сообщений в среднем упаковано в одну датаграмму BATCH
+    public double getFramesPerBatch() {
+        long batches = batchesSent.sum();
+        return batches == 0 ? 0 : (double) framesBatched.sum() / batches;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("datagramsSent=%d datagramsReceived=%d bytesSent=%d bytesReceived=%d"
+                        + " retransmissions=%d giveUps=%d emulatorLost=%d emulatorDuplicated=%d emulatorReordered=%d"
+                        + " acked=%d duplicates=%d fragmentsDeferred=%d framesDeferred=%d readPauses=%d"
+                        + " reportsSent=%d (delayed %d) reportsReceived=%d"
+                        + " skips=%d acksPerReport=%.2f batches=%d framesPerBatch=%.2f compressed=%d ratio=%.2f compressMs=%.1f"
+                        + " decompressMs=%.1f windowQueued=%d windowReductions=%d windowDiscarded=%d mailboxOverflows=%d"
+                        + " rejected=%d dropped=%d blocks=%d blockedMs=%.1f",
+                getDatagramsSent(), getDatagramsReceived(), getBytesSent(), getBytesReceived(), getRetransmissions(),
+                getDeliveryGiveUps(), getDatagramsLostByEmulator(), getDatagramsDuplicatedByEmulator(),
+                getDatagramsReorderedByEmulator(), getMessagesAcknowledged(), getDuplicatesReceived(),
+                getFragmentsDeferred(), getFramesDeferred(), getReadPauses(), getReportsSent(), getDelayedReportsSent(),
+                getReportsReceived(), getSkipsSent(), getAcksPerReport(), getBatchesSent(), getFramesPerBatch(),
+                getCompressedPayloads(), getCompressionRatio(), getCompressionNanos() / 1e6, getDecompressionNanos() / 1e6,
+                getMessagesQueuedByWindow(), getSendWindowReductions(), getQueuedMessagesDiscarded(),
+                getMailboxOverflows(), getMessagesRejected(), getMessagesDropped(), getProducerBlocks(),
+                getProducerBlockedNanos() / 1e6);
+    }
+}
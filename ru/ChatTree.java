@@ -1,30 +1,41 @@
 package ru;
 
+import ru.chatpacket.ChatFragmentMessage;
+import ru.chatpacket.ChatFrame;
 import ru.chatpacket.ChatPacket;
+import ru.chatpacket.ChatRelayMessage;
 import ru.chatpacket.ChatReportMessage;
 import ru.chatpacket.ChatTextMessage;
 import ru.chatpacket.ChatInfoMessage;
+import ru.chatpacket.DeliveryDataTuple;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.net.*;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
 
 import static ru.chatpacket.ProtocolMagicValues.*;
 
 public class ChatTree {
     private final int timeout = 1500;
     final int maxUDPPacketLength = 1460;
-    final int MAX_SEND_COUNT = 10;
+    //сколько раз сообщение отправляется получателю, прежде чем доставку ему прекратят (-Dchattree.maxSendCount)
+    final int MAX_SEND_COUNT = Integer.getInteger("chattree.maxSendCount", 10);
 
-    DatagramSocket socket = null;
+    // Цикл событий, который владеет сокетом узла
+    EventLoop eventLoop = null;
     // Структура, которая хранит топологию текущего узла (его родителя и множество детей)
     NodeTopology currentNodeTopology = null;
-    Thread inputThread;
 
     Node currentNode = null;
-    int packageLostPercent = 15;
+    //свойства эмулируемых связей с соседями (по умолчанию - 15% потерь) и эмулятор сети
+    LinkProfile linkProfile = LinkProfile.parse("15");
+    LinkEmulator linkEmulator = null;
 
     /*
         Общий формат для первых 5 байт любого сообщения в протоколе:
@@ -39,10 +50,77 @@ public class ChatTree {
         REPORT - отчет о доставке
         INFO - служебное сообщение, которое содержит информацию о связях между узлами
         TEXT - текстовое сообщение для участников чата
+        SKIP - отправитель больше не ждет подтверждения сообщений до указанного номера (доставка им прекращена)
     */
 
-    // Очередь, которая содержит сообщения, которые были отправлены, но статус их доставки еще не подтвержден
-    final ArrayList<ChatPacket> waitingReport = new ArrayList<>();
+    // Таблица, которая содержит сообщения, которые были отправлены, но статус их доставки еще не подтвержден
+    final PendingDeliveryTable waitingReport = new PendingDeliveryTable();
+    // Планировщик повторной отправки неподтвержденных сообщений
+    RetransmissionScheduler retransmissionScheduler = null;
+
+    // Отложенные отчеты о доставке: сообщения, принятые от соседа, подтверждаются одним отчетом не позже,
+    // чем через ackDelay мс после первого из них, или сразу, когда их накопилось ackThreshold (ackDelay = 0 - без задержки)
+    volatile int ackDelay = Integer.getInteger("chattree.ackDelay", 20);
+    volatile int ackThreshold = Integer.getInteger("chattree.ackThreshold", 8);
+
+    // Счетчики работы узла
+    final ChatMetrics metrics = new ChatMetrics();
+
+    // Переиспользуемые объекты потока цикла событий: кадр принятой датаграммы, отчет о доставке и его буфер,
+    // очередь узлов, которым должны отложенный отчет (с потоками-обработчиками такие очереди ведут они)
+    private final ChatFrame receivedFrame = new ChatFrame();
+    private final ChatReportMessage reportMessage = new ChatReportMessage();
+    private final ByteBuffer reportFrame = ByteBuffer.allocateDirect(REPORTLEN);
+    //буфер сообщения SKIP (только поток цикла)
+    private final ByteBuffer skipFrame = ByteBuffer.allocateDirect(SKIPLEN);
+    private final ArrayDeque<Node> delayedReports = new ArrayDeque<>();
+    //связи, у которых есть сообщения, ждущие места в окне отправки (только поток цикла)
+    private final ArrayList<Node> windowQueuedLinks = new ArrayList<>();
+
+    // Бюджет памяти неподтвержденных сообщений и политика при его превышении
+    final OutboundBudget outboundBudget = new OutboundBudget(waitingReport, metrics);
+    //текстовые сообщения, которые можно выбросить при превышении бюджета, от старых к новым (только поток цикла)
+    private final LinkedHashSet<ChatPacket> droppableMessages = new LinkedHashSet<>();
+
+    // Потоки-обработчики принятых сообщений (сообщения одного соседа - всегда в одном потоке): окно приема,
+    // подтверждение, пересылка, сборка и вывод. При workers = 0 сообщения обрабатываются прямо в цикле событий
+    final int workers = Integer.getInteger("chattree.workers", 0);
+    ReceivePipeline receivePipeline = null;
+    //узлы, рукопожатие с которыми поток-обработчик уже принял, а цикл событий еще не добавил в топологию
+    private final Map<InetSocketAddress, Node> handshakingNodes = new ConcurrentHashMap<>();
+    //копия датаграммы, кадры которой не поместились в кольцо потока-обработчика: цикл не читает сокет, пока
+    //не передаст их, начиная с позиции heldPosition (heldCount кадров, heldSender = null - копии нет, только поток цикла)
+    private ByteBuffer heldDatagram = null;
+    private int heldPosition = 0;
+    private int heldCount = 0;
+    private InetSocketAddress heldSender = null;
+
+    // Публикация метрик узла через JMX и периодический текстовый снимок
+    ChatTreeMonitor monitor = null;
+
+    // Текст, который не помещается в одну датаграмму, отправляется фрагментами с общим ID сообщения
+    private final AtomicInteger nextFragmentedMessageId = new AtomicInteger(ThreadLocalRandom.current().nextInt());
+    // Сборка фрагментированных сообщений соседей
+    MessageReassembler reassembler = null;
+
+    // Сжатие текста для соседей, которые его поддерживают (договариваемся в рукопожатии CHILD/PARENT).
+    // Тексты короче compressionThreshold байт не сжимаются
+    volatile boolean compression = Boolean.getBoolean("chattree.compression");
+    volatile int compressionThreshold = Integer.getInteger("chattree.compressionThreshold", 128);
+    final PayloadCodec payloadCodec = new PayloadCodec(metrics);
+
+    // Получатель принятых текстовых сообщений (по умолчанию - вывод в консоль).
+    // Вызывается из потока цикла событий или из потока-обработчика отправителя
+    public interface MessageListener {
+        void onMessage(String senderName, String text);
+    }
+
+    // Узел без вывода (только пересылка): принятые сообщения не декодируются для показа и не передаются
+    // получателю сообщений
+    volatile boolean quiet = Boolean.getBoolean("chattree.quiet");
+
+    private volatile MessageListener messageListener =
+            (senderName, text) -> ConsoleSink.println("Message from [" + senderName + "]: " + text);
 
     void parseArguments(String[] args) {
         //если недостаточно аргументов
@@ -53,9 +131,9 @@ public class ChatTree {
             //создаем наш узел  с текущем именем и портом
             currentNode = new Node(args[0], null, Integer.parseInt(args[1]));
 
-            //выставляем процент потерь
+            //выставляем процент потерь или свойства связей
             if (args.length > 2)
-                packageLostPercent = Integer.parseInt(args[2]);
+                linkProfile = LinkProfile.parse(args[2]);
 
             //если задан адрес и порт родителя, то создаем соостветсвующий узел и добавляем его в топологию
             if (args.length > 4) {
@@ -70,152 +148,571 @@ public class ChatTree {
         }
     }
 
-    // Кладем сообщение в очередь
+    // Кладем сообщение в таблицу неподтвержденных и отправляем его из потока цикла событий
     private void addWaitingMessage(ChatPacket message) {
-        synchronized (waitingReport) {
-            waitingReport.add(message);
+        addWaitingMessage(message, null);
+    }
+
+    // datagram - сообщение уже скопировано в буфер из пула (пересылаемый кадр, только поток цикла): буфер
+    // переходит к циклу, только если сообщение принято в таблицу, иначе сразу возвращается в пул
+    private void addWaitingMessage(ChatPacket message, ByteBuffer datagram) {
+        //текстовые сообщения ограничены бюджетом памяти, служебные - нет. Цикл событий и потоки-обработчики места
+        //не ждут: цикл освобождает его, а обработчик, который ждет, остановил бы прием (ReceivePipeline)
+        if (!(message instanceof ChatInfoMessage)
+                && !outboundBudget.admit(PendingDeliveryTable.sizeOf(message), mayBlock())) {
+            ConsoleSink.println("[ERROR] Outbound memory budget is exceeded, message is rejected");
+            if (datagram != null)
+                eventLoop.releaseFrame(datagram);
+            return;
+        }
+
+        if (!waitingReport.add(message)) {
+            if (datagram != null)
+                eventLoop.releaseFrame(datagram);
+            return;
         }
+        if (datagram != null)
+            eventLoop.adoptDatagram(message, datagram);
+
+        //сообщения, созданные в потоке цикла (пересылка, ответы), отправляем сразу,
+        //остальные цикл заберет из очереди исходящих сообщений
+        if (eventLoop.inEventLoop())
+            sendWaitingMessage(message);
+        else
+            eventLoop.submit(message);
+    }
+
+    //может ли текущий поток ждать места в бюджете исходящих сообщений
+    private boolean mayBlock() {
+        return !eventLoop.inEventLoop() && (receivePipeline == null || !receivePipeline.inWorker());
     }
 
-    // Находим в коллекции сообщения с идентификатором (sequenceNumber),
-    // и удаляем его из коллекции (отмечаем, как доставленное)
-    private void checkDeliveredMessages(int sequenceNumber) {
-        synchronized (waitingReport) {
-            Iterator<ChatPacket> iter = waitingReport.iterator();
+    // Отправка сообщения получателям, у которых есть место в окне отправки. Остальным сообщение уйдет,
+    // когда отчеты о доставке освободят место (очереди окон проверяются на каждой итерации цикла)
+    private void sendWaitingMessage(ChatPacket message) {
+        if (!(message instanceof ChatInfoMessage) && waitingReport.contains(message))
+            droppableMessages.add(message);
 
-            //пока есть не подтвержденные сообщения
-            while (iter.hasNext()) {
-                //получаем ссобщение
-                ChatPacket currentPacket = iter.next();
-                //удалили получателя из списка в сообщении
-                currentPacket.markAsReceiving(sequenceNumber);
+        for (DeliveryDataTuple recipient : message.getRecipients()) {
+            Node node = recipient.recipient;
+            SendWindow window = node.getSendWindow();
 
-                //удалили из нашего списка
-                if (currentPacket.isDeliver())
-                    iter.remove();
+            //порядок на связи сохраняется: пока есть очередь, новое сообщение встает за ней
+            if (!window.hasQueued() && window.isOpen(node.getInFlight())) {
+                transmit(recipient);
+                continue;
             }
 
-            //начали работать сов семи потоками
-            waitingReport.notifyAll();
+            if (!window.hasQueued())
+                windowQueuedLinks.add(node);
+            window.enqueue(recipient);
+            metrics.messagesQueuedByWindow.increment();
         }
     }
 
-    //обработчик сообщений
-    private void messageHandler(DatagramPacket packet) {
-        byte[] message = packet.getData();
-        //из массива байтов сделали буффер
-        ByteBuffer parser = ByteBuffer.wrap(message);
+    //первая отправка сообщения получателю
+    private void transmit(DeliveryDataTuple recipient) {
+        waitingReport.track(recipient);
+        eventLoop.send(recipient.packet, recipient);
+        retransmissionScheduler.schedule(recipient);
+    }
+
+    // Отправка сообщений, которые ждали места в окне (вызывается циклом событий на каждой итерации).
+    // Если связь признана недоступной, то ее очередь сбрасывается. Номер на связи получатель получает только
+    // при первой отправке, поэтому сброшенные из очереди получатели не оставляют пропусков в номерах соседа
+    private void drainSendWindows() {
+        for (int i = 0; i < windowQueuedLinks.size(); ) {
+            Node node = windowQueuedLinks.get(i);
+            SendWindow window = node.getSendWindow();
+
+            if (window.resetFailure()) {
+                DeliveryDataTuple recipient;
+                while ((recipient = window.dequeue()) != null) {
+                    metrics.queuedMessagesDiscarded.increment();
+                    waitingReport.discard(recipient);
+                }
+            }
+
+            while (window.hasQueued() && window.isOpen(node.getInFlight())) {
+                DeliveryDataTuple recipient = window.dequeue();
+                //сообщение могли выбросить, пока оно ждало места в окне
+                if (waitingReport.contains(recipient.packet))
+                    transmit(recipient);
+            }
+
+            if (window.hasQueued()) {
+                i++;
+            } else {
+                //очередь связи пуста: убираем связь из списка, на ее место ставим последнюю
+                Node last = windowQueuedLinks.remove(windowQueuedLinks.size() - 1);
+                if (last != node)
+                    windowQueuedLinks.set(i, last);
+            }
+        }
+    }
+
+    // Обработка отчета о доставке от узла node: отмечаем, как доставленные, все сообщения до cumulativeAck
+    // включительно и сообщения из битовой карты selectiveAcks. Сообщения, доставленные всем получателям,
+    // таблица удаляет и будит ожидающие потоки. Повторная отправка получателям отменяется
+    private void checkDeliveredMessages(Node node, int cumulativeAck, long selectiveAcks) {
+        DeliveryDataTuple newestAcknowledged = null;
+
+        int acknowledgedUpTo = node.getAcknowledgedUpTo();
+        if (node.advanceAcknowledgedUpTo(cumulativeAck)) {
+            for (int sequenceNumber = acknowledgedUpTo + 1; sequenceNumber - cumulativeAck <= 0; sequenceNumber++)
+                newestAcknowledged = acknowledgeMessage(node, sequenceNumber, newestAcknowledged);
+        }
+
+        for (int i = 0; i < ReceiveWindow.SACK_BITS && selectiveAcks != 0; i++, selectiveAcks >>>= 1) {
+            if ((selectiveAcks & 1) != 0)
+                newestAcknowledged = acknowledgeMessage(node, cumulativeAck + 2 + i, newestAcknowledged);
+        }
+
+        //время доставки самого нового из подтвержденных сообщений учитываем в RTT соседа,
+        //по правилу Карна сообщения, отправленные повторно, не учитываются
+        if (newestAcknowledged != null)
+            node.addRttSample((System.nanoTime() - newestAcknowledged.lastSendingTime) / 1e6);
+
+        //кумулятивное подтверждение остановилось на сообщении, доставку которого мы прекратили
+        if (node.hasAbandonedGap())
+            sendSkip(node);
+    }
+
+    // Сообщение SKIP сдвигает окно приема соседа за номера, которые мы больше не ждем: без него сосед
+    // не подтвердит ни одно сообщение дальше битовой карты выборочных подтверждений, и связь встанет.
+    // Как и отчет, SKIP не ждет подтверждения: пока пропуск остается, каждый отчет соседа вызовет новый SKIP
+    private void sendSkip(Node node) {
+        metrics.skipsSent.increment();
+        skipFrame.clear();
+        skipFrame.put(SKIP).putInt(node.getResolvedUpTo());
+        skipFrame.flip();
+        eventLoop.write(skipFrame, node.getSocketAddress());
+    }
+
+    //подтверждение одного сообщения, вернет самое новое из подтвержденных сообщений, отправленных один раз
+    private DeliveryDataTuple acknowledgeMessage(Node node, int sequenceNumber, DeliveryDataTuple newestAcknowledged) {
+        DeliveryDataTuple recipient = waitingReport.acknowledge(node, sequenceNumber);
+        if (recipient == null)
+            return newestAcknowledged;
+
+        retransmissionScheduler.cancel(recipient);
+        node.getSendWindow().onAcknowledged();
+        metrics.ackLatency.record(System.nanoTime() - recipient.firstSendingTime);
+
+        if (recipient.sendCounter == 1
+                && (newestAcknowledged == null || recipient.lastSendingTime > newestAcknowledged.lastSendingTime))
+            return recipient;
+        return newestAcknowledged;
+    }
+
+    // Обработчик сообщений (в потоке цикла). Вернет false, если кольцо потока-обработчика отправителя заполнено
+    // и кадр не принят
+    private boolean messageHandler(ChatFrame parser, InetSocketAddress sender) {
+        //тип сообщения (без флагов)
+        byte messageType = (byte) (parser.get(MSGTYPEPOS) & MSGTYPEMASK);
+
+        //если это отчет о доставке, то удаляем подтвержденные сообщения из неподтвержденных
+        if (messageType == REPORT) {
+            metrics.reportsReceived.increment();
+            Node sourceNode = currentNodeTopology.getNodeByAddress(sender);
+            if (sourceNode != null)
+                checkDeliveredMessages(sourceNode, parser.getInt(SEQNUMPOS), parser.getLong(REPORTSACKPOS));
+            return true;
+        }
+
+        //остальные сообщения обрабатывает поток-обработчик отправителя
+        if (receivePipeline != null)
+            return receivePipeline.submit(parser, sender);
+
+        receiveMessage(parser, sender);
+        return true;
+    }
+
+    // Прием сообщения от соседа (в потоке-обработчике отправителя или в цикле событий): окно приема
+    // отсеивает дубликаты, новое сообщение анализируется и подтверждается
+    private void receiveMessage(ChatFrame parser, InetSocketAddress sender) {
         //получили номер сообщения
         int sequenceNumber = parser.getInt(SEQNUMPOS);
+        //тип сообщения (без флагов)
+        byte messageType = (byte) (parser.get(MSGTYPEPOS) & MSGTYPEMASK);
+        //узел, от которого пришел пакет
+        Node sourceNode = findNode(sender);
+
+        //отправитель прекратил доставку сообщений до этого номера: сдвигаем окно приема и сразу отвечаем
+        //отчетом с новой границей
+        if (messageType == SKIP) {
+            if (sourceNode != null && sourceNode.getReceiveWindow() != null) {
+                sourceNode.skipReceived(sequenceNumber);
+                sendReport(sourceNode);
+            }
+            return;
+        }
 
-        //Проверяем текущее сообщение на признак того, что мы его уже обрабатывали
-        //проходимся по всей топологии узла
-        for (Node current : currentNodeTopology.getTopology())
-        {
-            //если кто-то из нашей топологии отправлял нам этот пакет
-            if (current.getAddress().equals(packet.getAddress()) && current.getPort() == packet.getPort())
-            {
-                //если мы обрабатывали это пакет
-                if (current.isExist(sequenceNumber))
-                {
-                    //если это не отчет о доставке
-                    if (message[MSGTYPEPOS] != REPORT)
-                        return;
+        //сообщение о новом потомке / соединении с родителем открывает окно приема от узла
+        boolean handshake = messageType == INFO
+                && (parser.get(INFOTYPEPOS) == CHILD || parser.get(INFOTYPEPOS) == PARENT);
+        if (sourceNode == null) {
+            if (!handshake)
+                return;
+            sourceNode = new Node(sender.getAddress(), sender.getPort());
+            //в топологию узел добавит цикл событий, а до тех пор повторы рукопожатия и следующие сообщения
+            //узла должны попасть в то же окно приема
+            if (receivePipeline != null)
+                handshakingNodes.put(sender, sourceNode);
+        }
 
-                    //если это отчет о доставке, то удаляем его из неподтвержденных сообзений
-                    checkDeliveredMessages(sequenceNumber);
-                    return;
-                }
+        // Фрагмент подтверждается, только когда сборщик его сохранил: фрагмент нового сообщения, которому не хватило
+        // памяти сборщика, не отмечаем в окне приема и не подтверждаем - отправитель повторит его позже.
+        // Так уже подтвержденные фрагменты не выбрасываются ради новых сообщений и не теряются молча
+        if (messageType == FRAGMENT && isReassembling(parser) && sourceNode.isNewSequenceNumber(sequenceNumber)
+                && !reassembler.canAccept(sourceNode, parser)) {
+            metrics.fragmentsDeferred.increment();
+            return;
+        }
 
-                //если мы не обрабатывали пакет, то добавляем его в список обрботанных пакетов
-                else
-                    current.addMessageID(sequenceNumber);
-                break;
+        //Проверяем по окну приема, не обрабатывали ли мы уже это сообщение
+        if (!sourceNode.acceptSequenceNumber(sequenceNumber, handshake)) {
+            //пришел дубликат - значит, отправитель не получил наш отчет о доставке, повторяем его сразу
+            if (sourceNode.getReceiveWindow() != null) {
+                metrics.duplicatesReceived.increment();
+                sendReport(sourceNode);
             }
+            return;
         }
 
-        messageAnalyzer(packet);
+        messageAnalyzer(parser, sourceNode);
+    }
+
+    //узел по адресу: соседи из топологии и узлы, рукопожатие с которыми еще не применено циклом событий
+    private Node findNode(InetSocketAddress address) {
+        Node node = currentNodeTopology.getNodeByAddress(address);
+        if (node == null && !handshakingNodes.isEmpty())
+            node = handshakingNodes.get(address);
+        return node;
     }
 
     // Анализ всех приходящих типов сообщений
-    private void messageAnalyzer(DatagramPacket packet) {
-        byte[] message = packet.getData();
-        ByteBuffer parser = ByteBuffer.wrap(message);
-        //номер сообщения
-        int sequenceNumber = parser.getInt(SEQNUMPOS);
+    private void messageAnalyzer(ChatFrame parser, Node sourceNode) {
+        //тип сообщения (без флагов)
+        byte messageType = (byte) (parser.get(MSGTYPEPOS) & MSGTYPEMASK);
+
+        //если это INFO сообщение: топологию меняет только цикл событий, поэтому поток-обработчик передает
+        //ему копию кадра (кадр обработчика переиспользуется)
+        if (messageType == INFO) {
+            if (eventLoop.inEventLoop()) {
+                infoMessageAnalyzer(parser, sourceNode);
+            } else {
+                ChatFrame info = new ChatFrame().wrap(copyOf(parser), 0, parser.length());
+                eventLoop.execute(() -> infoMessageAnalyzer(info, sourceNode));
+            }
+        }
+        //если обычное сообщение
+        else if (messageType == TEXT) {
+            textMessageAnalyzer(parser, sourceNode);
+        }
+        //фрагменты собираются сразу (место под них проверено до подтверждения)
+        else if (messageType == FRAGMENT) {
+            fragmentAnalyzer(parser, sourceNode);
+        }
+
+        // Автоматически подтверждаем сообщение отчетом о доставке (сразу или отложенным)
+        acknowledgeReceiving(sourceNode);
+    }
 
-        //если это отчет о доставке
-        if (message[MSGTYPEPOS] == REPORT) {
-            checkDeliveredMessages(sequenceNumber);
+    // Анализ текстового сообщения: пересылка, распаковка и вывод
+    private void textMessageAnalyzer(ChatFrame parser, Node sourceNode) {
+        //признак сжатого текста
+        boolean compressed = (parser.get(MSGTYPEPOS) & COMPRESSED) != 0;
+
+        //рассылаем сообщение тем участникам сети, которых мы знаем, но которые не являются отправителем,
+        //пересылая принятый кадр как есть
+        Set<Node> recipients = getRelayRecipients(sourceNode.getAddress(), sourceNode.getPort());
+        Set<Node> rawRecipients = relayFrame(parser, compressed, recipients);
+        //узел только пересылает сообщения: текст нужен лишь соседям, которые не принимают сжатые сообщения
+        if (quiet && rawRecipients.isEmpty())
             return;
+
+        textMessageHandler(parser, sourceNode, rawRecipients);
+    }
+
+    //вывод текстового сообщения и отправка его текста соседям, которые не принимают сжатые сообщения
+    private void textMessageHandler(ChatFrame parser, Node sourceNode, Set<Node> rawRecipients) {
+        boolean compressed = (parser.get(MSGTYPEPOS) & COMPRESSED) != 0;
+
+        //длина текста
+        int textLength = parser.getInt(TEXTLENPOS);
+        //текст декодируем только для вывода (и для соседей, которые не принимают сжатые сообщения)
+        String chatData;
+        if (compressed) {
+            byte[] textBytes = new byte[textLength];
+            parser.get(TEXTPOS, textBytes);
+            chatData = decodeText(textBytes, true);
+        } else {
+            chatData = readString(parser, TEXTPOS, textLength);
         }
-        //если это INFO сообщение
-        else if (message[MSGTYPEPOS] == INFO) {
-            infoMessageAnalyzer(packet, parser, sequenceNumber);
+
+        if (chatData != null) {
+            if (!quiet)
+                messageListener.onMessage(sourceNode.getNodeName(), chatData);
+            if (!rawRecipients.isEmpty())
+                sendText(chatData.getBytes(StandardCharsets.UTF_8), false, rawRecipients);
         }
-        //если обычное сообщение
-        else if (message[MSGTYPEPOS] == TEXT) {
-            try {
-                //длина текста
-                int textLength = parser.getInt(TEXTLENPOS);
-                //сообщение
-                String chatData = new String(message, TEXTPOS, textLength, "UTF-8");
-                System.out.println("Message from [" + currentNodeTopology.getNameByAddress(packet.getAddress(),
-                        packet.getPort()) + "]: " + chatData);
-                //рассылаем сообщение тем участникам сети, которых мы знаем, но которые не являются отправителем
-                sendMessage(chatData, packet.getAddress(), packet.getPort());
-            } catch (UnsupportedEncodingException e) {
-                System.out.println("[I/O Thread Message] Invalid text data");
+    }
+
+    // Анализ фрагмента длинного сообщения: пересылка и сборка. Собранное сообщение распаковывается и выводится
+    private void fragmentAnalyzer(ChatFrame parser, Node sourceNode) {
+        boolean compressed = (parser.get(MSGTYPEPOS) & COMPRESSED) != 0;
+
+        //фрагмент пересылаем дальше сразу, не дожидаясь остальных
+        Set<Node> recipients = getRelayRecipients(sourceNode.getAddress(), sourceNode.getPort());
+        Set<Node> rawRecipients = relayFrame(parser, compressed, recipients);
+        //несжатые фрагменты пересылаются как есть, собирать их узлу без вывода незачем
+        if (!isReassembling(parser))
+            return;
+
+        //сообщение, если это был его последний недостающий фрагмент
+        byte[] textBytes = reassembler.addFragment(sourceNode, parser);
+        if (textBytes == null || (quiet && rawRecipients.isEmpty()))
+            return;
+
+        reassembledMessageAnalyzer(textBytes, compressed, rawRecipients, sourceNode);
+    }
+
+    //вывод собранного сообщения и отправка его текста соседям, которые не принимают сжатые сообщения
+    private void reassembledMessageAnalyzer(byte[] textBytes, boolean compressed, Set<Node> rawRecipients,
+                                            Node sourceNode) {
+        String chatData = decodeText(textBytes, compressed);
+        if (chatData != null) {
+            if (!quiet)
+                messageListener.onMessage(sourceNode.getNodeName(), chatData);
+            if (!rawRecipients.isEmpty())
+                sendText(chatData.getBytes(StandardCharsets.UTF_8), false, rawRecipients);
+        }
+    }
+
+    //собирает ли узел фрагменты такого сообщения (несжатые фрагменты узел без вывода только пересылает)
+    private boolean isReassembling(ChatFrame parser) {
+        return !quiet || (parser.get(MSGTYPEPOS) & COMPRESSED) != 0;
+    }
+
+    // Подтверждение принятого сообщения. Отчет описывает все принятые от узла сообщения, поэтому
+    // подтверждения копятся до порога или таймера и уходят одной датаграммой
+    private void acknowledgeReceiving(Node sourceNode) {
+        metrics.messagesAcknowledged.increment();
+
+        int delay = ackDelay;
+        if (delay <= 0 || sourceNode.addUnreportedMessage() >= ackThreshold) {
+            sendReport(sourceNode);
+            return;
+        }
+
+        // Отложенный отчет: узел встает в очередь (если еще не стоит в ней), которую цикл событий
+        // проверяет на каждой итерации (или очередь потока-обработчика узла).
+        // Задержка у всех одинаковая, поэтому очередь упорядочена по времени отправки
+        if (!sourceNode.isReportScheduled()) {
+            sourceNode.scheduleReport(TimerWheel.currentTime() + delay);
+            if (receivePipeline != null)
+                receivePipeline.scheduleReport(sourceNode);
+            else
+                delayedReports.add(sourceNode);
+        }
+    }
+
+    // Работа, которую цикл событий выполняет на каждой итерации
+    private void onLoopIteration() {
+        dropOldestMessages();
+        drainSendWindows();
+        sendDelayedReports();
+    }
+
+    // Политика DROP_OLDEST_TEXT: пока неподтвержденные сообщения не помещаются в бюджет,
+    // выбрасываем самые старые текстовые сообщения (доставка им прекращается у всех получателей).
+    // Номер уже отправленного сообщения остается пропуском на связи, его закрывает сообщение SKIP
+    // (checkDeliveredMessages), а у сообщений, ждущих места в окне, номера еще нет
+    private void dropOldestMessages() {
+        if (outboundBudget.getPolicy() != OutboundBudget.Policy.DROP_OLDEST_TEXT)
+            return;
+
+        Iterator<ChatPacket> iterator = droppableMessages.iterator();
+        while (outboundBudget.isExceeded() && iterator.hasNext()) {
+            ChatPacket message = iterator.next();
+            iterator.remove();
+            metrics.messagesDropped.increment();
+
+            for (DeliveryDataTuple recipient : message.getRecipients()) {
+                retransmissionScheduler.cancel(recipient);
+                //получатели, которым сообщение еще не отправлено (ждут места в окне), в таблицах соседей не стоят
+                if (waitingReport.isPending(recipient))
+                    waitingReport.giveUp(recipient);
+                else
+                    waitingReport.discard(recipient);
+            }
+        }
+    }
+
+    // Сообщение покинуло таблицу неподтвержденных (в потоке цикла)
+    private void messageReleased(ChatPacket message) {
+        droppableMessages.remove(message);
+        eventLoop.release(message);
+    }
+
+    // Отправка отложенных отчетов, время которых пришло
+    private void sendDelayedReports() {
+        long now = TimerWheel.currentTime();
+        Node node;
+        while ((node = delayedReports.peek()) != null && node.getReportDeadline() <= now) {
+            delayedReports.poll();
+            delayedReportDue(node);
+        }
+    }
+
+    //время отложенного отчета узлу пришло (в цикле событий или в потоке-обработчике узла)
+    private void delayedReportDue(Node node) {
+        node.unscheduleReport();
+
+        //отчет мог уже уйти по порогу
+        if (node.getUnreportedMessages() > 0) {
+            metrics.delayedReportsSent.increment();
+            sendReport(node);
+        }
+    }
+
+    // Отчет о доставке отправляется один раз и не ждет подтверждения: если он потеряется, отправитель
+    // повторит сообщение, и на дубликат мы ответим новым отчетом.
+    // Отчет собирается в переиспользуемом буфере, поэтому ответ на сообщение не создает объектов.
+    // Поток-обработчик только снимает границы окна приема, а отправляет отчет цикл событий
+    private void sendReport(Node sourceNode) {
+        //отчет подтверждает все накопленные сообщения
+        sourceNode.resetUnreportedMessages();
+        metrics.reportsSent.increment();
+
+        ReceiveWindow receiveWindow = sourceNode.getReceiveWindow();
+        int cumulativeAck = receiveWindow.getCumulativeAck();
+        long selectiveAcks = receiveWindow.getSelectiveAcks();
+        if (eventLoop.inEventLoop())
+            writeReport(sourceNode, cumulativeAck, selectiveAcks);
+        else
+            eventLoop.execute(() -> writeReport(sourceNode, cumulativeAck, selectiveAcks));
+    }
+
+    //отправка отчета (только поток цикла)
+    private void writeReport(Node sourceNode, int cumulativeAck, long selectiveAcks) {
+        reportMessage.set(cumulativeAck, selectiveAcks);
+        reportFrame.clear();
+        reportMessage.encode(reportFrame);
+        reportFrame.flip();
+        eventLoop.write(reportFrame, sourceNode.getSocketAddress());
+    }
+
+    // Пересылка принятого кадра получателям без декодирования: кадр копируется из буфера приема один раз,
+    // и для каждого получателя в нем меняется только sequence number.
+    // Сжатый кадр пересылается только тем, кто принимает сжатые сообщения, остальных вернет метод
+    private Set<Node> relayFrame(ChatFrame frame, boolean compressed, Set<Node> recipients) {
+        Set<Node> rawRecipients = Collections.emptySet();
+        if (compressed) {
+            rawRecipients = new HashSet<>();
+            for (Node recipient : recipients) {
+                if (!recipient.isCompressionSupported())
+                    rawRecipients.add(recipient);
             }
+            recipients.removeAll(rawRecipients);
         }
 
-        // Автоматически отправяем отчет о доставке о принятом сообщении
-        ChatReportMessage reportMessage = new ChatReportMessage(sequenceNumber);
-        reportMessage.setRecipient(new Node(packet.getAddress(), packet.getPort()));
-        reportMessage.send(socket);
-        addWaitingMessage(reportMessage);
+        if (!recipients.isEmpty())
+            relayFrame(frame, recipients);
+
+        return rawRecipients;
+    }
+
+    // Пересылка кадра: кадр копируется в буфер из пула, номера получателям выдаются при отправке.
+    // Пул принадлежит циклу событий, поэтому поток-обработчик копирует кадр в свой буфер, а цикл закодирует
+    // сообщение в буфер из пула при первой отправке
+    private void relayFrame(ChatFrame frame, Set<Node> recipients) {
+        if (!eventLoop.inEventLoop()) {
+            ChatRelayMessage packet = new ChatRelayMessage(copyOf(frame));
+            packet.setRecipient(recipients);
+            addWaitingMessage(packet);
+            return;
+        }
+
+        ByteBuffer datagram = eventLoop.copyFrame(frame);
+        ChatRelayMessage packet = new ChatRelayMessage(datagram);
+        packet.setRecipient(recipients);
+        addWaitingMessage(packet, datagram);
+    }
+
+    //копия кадра в новом буфере (кадр потока-обработчика валиден только до конца его обработки)
+    private static ByteBuffer copyOf(ChatFrame frame) {
+        ByteBuffer copy = ByteBuffer.allocate(frame.length());
+        copy.put(0, frame.buffer(), frame.offset(), frame.length());
+        return copy;
+    }
+
+    //текст сообщения из байтов (сжатых или в кодировке UTF-8), null - если сжатые данные испорчены
+    private String decodeText(byte[] textBytes, boolean compressed) {
+        if (!compressed)
+            return new String(textBytes, StandardCharsets.UTF_8);
+
+        try {
+            return new String(payloadCodec.decompress(textBytes, 0, textBytes.length), StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            ConsoleSink.println("[I/O Thread Message] Compressed message can't be decompressed: " + e.getMessage());
+            return null;
+        }
+    }
+
+    //строка в кодировке UTF-8 из кадра
+    private static String readString(ChatFrame parser, int position, int length) {
+        byte[] textBytes = new byte[length];
+        parser.get(position, textBytes);
+        return new String(textBytes, StandardCharsets.UTF_8);
     }
 
     //Анализ INFO сообщений
-    private void infoMessageAnalyzer(DatagramPacket packet, ByteBuffer parser, int sequenceNumber) {
-        byte[] message = packet.getData();
+    private void infoMessageAnalyzer(ChatFrame parser, Node newNode) {
         //тип информационного сообщения
         byte type = parser.get(INFOTYPEPOS);
 
         //если это сообщение о новом ребенке / соединении с родителем
         if (type == CHILD || type == PARENT) {
-            //создаем новый узел с адресом
-            Node newNode = new Node(packet.getAddress(), packet.getPort());
-            //добавляем в него номер сообщения
-            newNode.addMessageID(sequenceNumber);
-
             //размер имени
             int nameLength = parser.getInt(INFONAMELENPOS);
 
-            try {
-                //установили имя узла
-                newNode.setNodeName(new String(message, INFONAMEPOS, nameLength, "UTF-8"));
-            } catch (UnsupportedEncodingException e) {
-                System.out.println("[I/O Thread Message] New node has invalid name");
+            //установили имя узла
+            newNode.setNodeName(readString(parser, INFONAMEPOS, nameLength));
+            //возможности узла идут после имени (у старых версий их нет)
+            byte capabilities = parser.length() > INFONAMEPOS + nameLength ? parser.get(INFONAMEPOS + nameLength) : 0;
+            boolean compressionSupported = (capabilities & CAPCOMPRESSION) != 0;
+            //со словарем другой версии сжатые данные не распакуются: такому узлу текст уходит несжатым
+            int dictionaryId = (capabilities & CAPDICTIONARYMASK) >>> CAPDICTIONARYSHIFT;
+            if (compressionSupported && dictionaryId != PayloadCodec.DICTIONARY_ID) {
+                ConsoleSink.println("[ERROR] " + newNode.getNodeName() + " uses compression dictionary " + dictionaryId
+                        + " instead of " + PayloadCodec.DICTIONARY_ID + ", messages are sent uncompressed");
+                compressionSupported = false;
             }
+            newNode.setCompressionSupported(compressionSupported);
 
             //если кто-то подключается к нам как потомок
             if (type == CHILD) {
+                // Сообщение потомку с нашими именем. Номер на связи выдается при первой отправке, а рукопожатие
+                // уходит сразу из потока цикла, поэтому оно получает первый номер на связи с потомком
+                ChatInfoMessage toChildMessage = new ChatInfoMessage(PARENT);
+                toChildMessage.setNodeName(currentNode.getNodeName());
+                toChildMessage.setCapabilities(getCapabilities());
+                toChildMessage.setRecipient(newNode);
+
                 //добавили эго в топологию потомков
                 currentNodeTopology.addChildrenNode(newNode);
-                System.out.println(newNode.getNodeName() + " child is connected");
+                handshakingNodes.remove(newNode.getSocketAddress(), newNode);
+                ConsoleSink.println(newNode.getNodeName() + " child is connected");
 
-                // Отправлем потомку сообщение с нашими именем
-                ChatInfoMessage toChildMessage = new ChatInfoMessage(PARENT);
-                toChildMessage.setNodeName(currentNode.getNodeName());
-                toChildMessage.setRecipient(new Node(packet.getAddress(), packet.getPort()));
-                toChildMessage.send(socket);
                 addWaitingMessage(toChildMessage);
             }
             else if (type == PARENT) {
                 //установили нового родителя
                 currentNodeTopology.setParent(newNode);
-                System.out.println(newNode.getNodeName() + " parent is connected");
+                handshakingNodes.remove(newNode.getSocketAddress(), newNode);
+                ConsoleSink.println(newNode.getNodeName() + " parent is connected");
             }
         }
         //если это сообщение об отключении родителя, то устанавливаем родителя в null
@@ -225,7 +722,7 @@ public class ChatTree {
         }
         //если это сообщение об отключении потомка, то удаляем потомка из коллекции
         else if (type == NOCHILD) {
-            if (currentNodeTopology.getChildrens().remove(new Node(packet.getAddress(), packet.getPort())))
+            if (currentNodeTopology.removeChildrenNode(newNode))
                 return;
         }
         //если это сообщение о новом родителе
@@ -238,27 +735,29 @@ public class ChatTree {
                 }
 
                 InetAddress parentAddr = InetAddress.getByAddress(rawParentAddr);
-                System.out.println("New parent IP = " + parentAddr);
+                ConsoleSink.println("New parent IP = " + parentAddr);
                 //получили новый порт
                 int port = parser.getInt(PORTPOS);
-                System.out.println("New parent port = " + port);
+                ConsoleSink.println("New parent port = " + port);
+
+                //новый родитель станет родителем, когда ответит нам PARENT сообщением
+                Node newParent = new Node(parentAddr, port);
+                currentNodeTopology.setPendingParent(newParent);
 
                 //отправление нашего имени, как имени потомка
                 ChatInfoMessage toParentMessage = new ChatInfoMessage(CHILD);
                 toParentMessage.setNodeName(currentNode.getNodeName());
-                toParentMessage.setRecipient(new Node(parentAddr, port));
-                toParentMessage.send(socket);
+                toParentMessage.setCapabilities(getCapabilities());
+                toParentMessage.setRecipient(newParent);
                 addWaitingMessage(toParentMessage);
-
-                currentNodeTopology.getParent().addMessageID(sequenceNumber);
             } catch (UnknownHostException e) {
-                System.out.println("[I/O Thread Message] New parent address can't parsed!");
+                ConsoleSink.println("[I/O Thread Message] New parent address can't parsed!");
             }
         }
     }
 
-    // В конструкторе создаем второй поток, который будет заниматься принятием и
-    // анализом входящих пакетов, а также отправкой сообщений о доставке
+    // В конструкторе создаем цикл событий, который в отдельном потоке будет заниматься принятием и
+    // анализом входящих пакетов, отправкой сообщений и отчетов о доставке, а также повторной отправкой
     public ChatTree(String[] args) {
         //создали топологию для нашего узла
         currentNodeTopology = new NodeTopology();
@@ -266,103 +765,258 @@ public class ChatTree {
         parseArguments(args);
 
         try {
-            //создали сокет, отключили broadcast рассылку, и установили время таймаута
-            socket = new DatagramSocket(currentNode.getPort());
-            socket.setBroadcast(false);
-            socket.setSoTimeout(timeout);
-
-            currentNode.setIPAddress(socket.getInetAddress());
-
-            /* Создаем второй поток, который является служебным.
-               Его задачи:
-                1) Получать сообщения от других узлов
-                2) Обрабатывать их
-                3) Реализация "надежной доставки сообщений"
-            */
-            inputThread = new Thread(() -> {
-                //создали DatagramPacket для приема пакетов длины maxUDPPacketLength
-                DatagramPacket tempPacket = new DatagramPacket(new byte[maxUDPPacketLength], maxUDPPacketLength);
-                //для имитации сетевой потери пакета
-                Random randGenerator = new Random();
-                //таймаут истек
-                boolean timeoutExpired = true;
-
-                //пока поток не будет прерван
-                while (!Thread.currentThread().isInterrupted()) {
-                    try {
-                        try {
-                            //получаем пакет
-                            socket.receive(tempPacket);
-                            //если отправитель неизвестен и это не информационный пакет, то мы его игнорируем
-                            if (!primaryPacketChecking(tempPacket))
-                                continue;
-
-                            //таймаут не истек
-                            timeoutExpired = false;
-                        } catch (SocketTimeoutException e) {}
-
-                        //генерируем число для иммитации сетевой потери пакета
-                        int randInt = randGenerator.nextInt(100);
-                        //если число больше чем наш процент потерь и мы получили пакет, то кидаем его на обработку
-                        if (randInt >= packageLostPercent && !timeoutExpired)
-                            messageHandler(tempPacket);
-
-                        deliveryManager();
-
-                        timeoutExpired = true;
-                    } catch (IOException e) {
-                        System.out.println("[I/O Thread Message] Some problems with packet receiving");
-                        System.out.println(e.getMessage());
-                    }
-                }
-            });
+            //создали канал на нашем порту, принимающий пакеты длины maxUDPPacketLength
+            eventLoop = new EventLoop(currentNode.getPort(), maxUDPPacketLength, this::datagramHandler, metrics);
+
+            InetSocketAddress localAddress = eventLoop.getLocalAddress();
+            //порт 0 - сокет получил свободный порт от системы, его и сообщаем соседям
+            if (currentNode.getPort() == 0)
+                currentNode = new Node(currentNode.getNodeName(), null, localAddress.getPort());
+            currentNode.setIPAddress(localAddress.getAddress());
+            //входящие датаграммы проходят через эмуляцию сети
+            linkEmulator = new LinkEmulator(linkProfile, metrics);
+            eventLoop.setLinkEmulator(linkEmulator);
+            //датаграммы сообщений, которые покинули таблицу неподтвержденных, возвращаются в пул
+            waitingReport.setReleaseListener(this::messageReleased);
+
+            //повторная отправка неподтвержденных сообщений по таймерам цикла событий
+            retransmissionScheduler = new RetransmissionScheduler(waitingReport, eventLoop, metrics, MAX_SEND_COUNT);
+            //сборка длинных сообщений (таймауты фрагментов - по тем же таймерам)
+            reassembler = new MessageReassembler(eventLoop.getTimerWheel());
+            //сообщения, отправленные из других потоков, цикл забирает пачками из своей очереди
+            eventLoop.setOutboundHandler(this::sendWaitingMessage);
+            //очереди окон отправки и отложенные отчеты о доставке проверяются на каждой итерации цикла
+            eventLoop.setIterationTask(this::onLoopIteration);
+            if (workers > 0) {
+                receivePipeline = new ReceivePipeline(workers, this::receiveMessage, this::delayedReportDue, eventLoop);
+                eventLoop.setReadResumeHandler(this::releaseHeldFrames);
+            }
 
-            inputThread.start();
-        } catch (SocketException e) {
-            System.out.println("[ERROR] Some troubles with socket opening! Maybe you enter incorrect port");
+            eventLoop.start();
+            monitor = new ChatTreeMonitor(this);
+            monitor.start();
+        } catch (IOException e) {
+            ConsoleSink.println("[ERROR] Some troubles with socket opening! Maybe you enter incorrect port");
         }
     }
 
-    //первичная проверка пакетов, от того ли мы получили пакет
-    private boolean primaryPacketChecking(DatagramPacket tempPacket) {
-        //getAddress - ip-адрес отправителя
-        //getPort - порт отправителя
-        Node testNode = new Node(tempPacket.getAddress(), tempPacket.getPort());
-
-        //true, если этот узел есть в топологии нашего узла
-        for (Node current : currentNodeTopology.getTopology()) {
-            if (current.equals(testNode))
+    // Обработка пришедшей датаграммы в потоке цикла событий.
+    // Если отправитель неизвестен и это не информационный пакет, то мы его игнорируем
+    private void datagramHandler(ByteBuffer datagram, InetSocketAddress sender) {
+        int frameCount = datagram.get(MSGTYPEPOS) == BATCH ? datagram.getInt(BATCHCOUNTPOS) : 1;
+        handleFrames(datagram, BATCHFRAMESPOS, frameCount, sender);
+    }
+
+    // Обработка кадров датаграммы, начиная с кадра BATCH на позиции position (count - сколько кадров осталось,
+    // у датаграммы без BATCH позиция и количество не используются). Вернет false, если кольцо потока-обработчика
+    // заполнено: чтение остановлено, а оставшиеся кадры задержаны до его возобновления
+    private boolean handleFrames(ByteBuffer datagram, int position, int count, InetSocketAddress sender) {
+        //датаграмма с одним сообщением
+        if (datagram.get(MSGTYPEPOS) != BATCH) {
+            receivedFrame.wrap(datagram, 0, datagram.limit());
+            if (!primaryPacketChecking(receivedFrame, sender) || messageHandler(receivedFrame, sender))
                 return true;
+            holdFrames(datagram, 0, 1, sender);
+            return false;
+        }
+
+        //датаграмма с несколькими сообщениями: разбираем и обрабатываем каждое отдельно
+        for (int i = 0; i < count; i++) {
+            int frameLength = datagram.getShort(position) & 0xFFFF;
+            receivedFrame.wrap(datagram, position + BATCHFRAMEHEADERLEN, frameLength);
+            if (primaryPacketChecking(receivedFrame, sender) && !messageHandler(receivedFrame, sender)) {
+                holdFrames(datagram, position, count - i, sender);
+                return false;
+            }
+            position += BATCHFRAMEHEADERLEN + frameLength;
         }
+        return true;
+    }
+
+    // Задержка необработанных кадров датаграммы до возобновления чтения. Задержать можно только одну датаграмму:
+    // пока чтение остановлено, новые приходят лишь из эмуляции сети, и их кадры не принимаются (отправитель повторит)
+    private void holdFrames(ByteBuffer datagram, int position, int count, InetSocketAddress sender) {
+        if (datagram != heldDatagram) {
+            if (heldSender != null) {
+                metrics.framesDeferred.add(count);
+                return;
+            }
+            if (heldDatagram == null || heldDatagram.capacity() < datagram.limit())
+                heldDatagram = ByteBuffer.allocate(Math.max(datagram.limit(), 2048));
+            heldDatagram.clear();
+            heldDatagram.put(0, datagram, 0, datagram.limit());
+            heldDatagram.limit(datagram.limit());
+        }
+
+        heldPosition = position;
+        heldCount = count;
+        heldSender = sender;
+    }
+
+    // Перед возобновлением чтения (в потоке цикла) передаем потокам-обработчикам задержанные кадры.
+    // Вернет false, если кольцо снова заполнено и чтение остается остановленным
+    private boolean releaseHeldFrames() {
+        InetSocketAddress sender = heldSender;
+        if (sender == null)
+            return true;
+
+        heldSender = null;
+        return handleFrames(heldDatagram, heldPosition, heldCount, sender);
+    }
+
+    //первичная проверка пакетов, от того ли мы получили пакет
+    private boolean primaryPacketChecking(ChatFrame datagram, InetSocketAddress sender) {
+        //true, если этот узел есть в топологии нашего узла (или мы к нему подключаемся, или рукопожатие с ним
+        //уже принято потоком-обработчиком)
+        if (findNode(sender) != null)
+            return true;
 
         //true, если это INFO пакет и он информирует о новом потомке / соединении с родителем
-        if (tempPacket.getData()[MSGTYPEPOS] == INFO) {
-            if (tempPacket.getData()[INFOTYPEPOS] == CHILD || tempPacket.getData()[INFOTYPEPOS] == PARENT)
+        if (datagram.get(MSGTYPEPOS) == INFO) {
+            if (datagram.get(INFOTYPEPOS) == CHILD || datagram.get(INFOTYPEPOS) == PARENT)
                 return true;
         }
 
         return false;
     }
 
-    // Реализация "надежной доставки сообщений"
-    private void deliveryManager() {
-        synchronized (waitingReport) {
-            //System.out.println("Queue size = " + waitingReport.size());
-            Iterator<ChatPacket> packetIter = waitingReport.iterator();
+    //задержка отчета о доставке в мс (0 - отчет на каждое сообщение)
+    public void setAckDelay(int _ackDelay) {
+        ackDelay = _ackDelay;
+    }
 
-            while (packetIter.hasNext()) {
-                ChatPacket currentPacket = packetIter.next();
+    public int getAckDelay() {
+        return ackDelay;
+    }
 
-                if (System.currentTimeMillis() - currentPacket.getLastSendingTime() > timeout) {
-                    if (currentPacket.getSendingCount() < MAX_SEND_COUNT)
-                        currentPacket.send(socket);
-                    else
-                        packetIter.remove();
-                }
-            }
+    //сколько сообщений от соседа можно накопить до немедленной отправки отчета
+    public void setAckThreshold(int _ackThreshold) {
+        ackThreshold = _ackThreshold;
+    }
 
-            waitingReport.notifyAll();
-        }
+    public int getAckThreshold() {
+        return ackThreshold;
+    }
+
+    // Упаковка сообщений одному соседу в общие датаграммы: linger - сколько мс датаграмма ждет новых
+    // сообщений (0 - отправка в конце итерации цикла событий, без дополнительной задержки)
+    public void setBatching(boolean enabled, int linger) {
+        eventLoop.setBatching(enabled, linger);
+    }
+
+    // Ограничения сборки длинных сообщений: сколько байт недособранных сообщений храним для одного соседа
+    // и сколько мс ждем недостающие фрагменты
+    public void setReassemblyLimits(int maxBytesPerSender, int timeout) {
+        reassembler.setMaxBytesPerSender(maxBytesPerSender);
+        reassembler.setTimeout(timeout);
+    }
+
+    //кто отправляет датаграммы: цикл событий или отправители соседей (-Dchattree.neighborSenders=true)
+    public String getSenderMode() {
+        return eventLoop.getSenderMode();
+    }
+
+    // Бюджет памяти неподтвержденных сообщений в байтах (0 - без ограничения) и политика при его превышении
+    public void setOutboundBudget(long bytes, OutboundBudget.Policy policy) {
+        outboundBudget.configure(bytes, policy);
+    }
+
+    //сколько байт сейчас занимают неподтвержденные сообщения
+    public long getPendingOutboundBytes() {
+        return waitingReport.getPendingBytes();
+    }
+
+    // Окно отправки для новых соседей: начальный (или постоянный) и максимальный размер,
+    // adaptive - подстраивать ли размер по потерям (AIMD)
+    public void setSendWindow(int initialSize, int maxSize, boolean adaptive) {
+        SendWindow.configure(initialSize, maxSize, adaptive);
+    }
+
+    // Состояние связей с соседями: размер окна отправки, сколько сообщений ждут подтверждения
+    // и сколько ждут места в окне, а также RTT и RTO
+    public String getLinkStatistics() {
+        StringBuilder statistics = new StringBuilder();
+        for (Node node : currentNodeTopology.getTopology())
+            statistics.append(describeLink(node)).append(System.lineSeparator());
+        return statistics.toString();
+    }
+
+    //состояние связи с соседом одной строкой (общий формат статистики связей и метрик)
+    static String describeLink(Node node) {
+        SendWindow window = node.getSendWindow();
+        return String.format("%s %s window=%d inFlight=%d queued=%d srtt=%.1fms rto=%dms", node.getNodeName(),
+                node.getSocketAddress(), window.getSize(), node.getInFlight(), window.getQueuedMessages(),
+                node.getSmoothedRtt(), node.getRetransmissionTimeout());
+    }
+
+    //количество потоков-обработчиков текстовых сообщений (0 - обработка в цикле событий)
+    public int getWorkers() {
+        return receivePipeline != null ? receivePipeline.getWorkerCount() : 0;
+    }
+
+    public ChatMetrics getMetrics() {
+        return metrics;
+    }
+
+    //возможности нашего узла для рукопожатия CHILD/PARENT
+    private byte getCapabilities() {
+        return compression ? (byte) (CAPCOMPRESSION | PayloadCodec.DICTIONARY_ID << CAPDICTIONARYSHIFT) : 0;
+    }
+
+    // Сжатие текста для соседей, которые его поддерживают (действует для новых рукопожатий)
+    public void setCompression(boolean _compression) {
+        compression = _compression;
+    }
+
+    public boolean isCompression() {
+        return compression;
+    }
+
+    //тексты короче threshold байт отправляются без сжатия
+    public void setCompressionThreshold(int threshold) {
+        compressionThreshold = threshold;
+    }
+
+    // Эмуляция сети: свойства связей с соседями, для которых не заданы свои
+    public void setLinkProfile(LinkProfile profile) {
+        eventLoop.execute(() -> linkEmulator.setDefaultProfile(profile));
+    }
+
+    //свойства связи с соседом neighbor (null - свойства по умолчанию)
+    public void setLinkProfile(InetSocketAddress neighbor, LinkProfile profile) {
+        eventLoop.execute(() -> linkEmulator.setProfile(neighbor, profile));
+    }
+
+    //начальное значение генераторов случайных чисел эмуляции (-Dchattree.linkSeed)
+    public void setLinkSeed(long seed) {
+        eventLoop.execute(() -> linkEmulator.setSeed(seed));
+    }
+
+    //свой получатель принятых сообщений вместо вывода в консоль
+    public void setMessageListener(MessageListener listener) {
+        messageListener = listener;
+    }
+
+    //режим без вывода принятых сообщений (узел только пересылает их)
+    public void setQuiet(boolean _quiet) {
+        quiet = _quiet;
+    }
+
+    public boolean isQuiet() {
+        return quiet;
+    }
+
+    //порт, на котором узел принимает датаграммы
+    public int getPort() {
+        return currentNode.getPort();
+    }
+
+    // Остановка узла без оповещения соседей: закрываем сокет и потоки-обработчики
+    public void close() {
+        monitor.stop();
+        eventLoop.stop();
+        if (receivePipeline != null)
+            receivePipeline.shutdown();
     }
 
     //подключение
@@ -375,7 +1029,7 @@ public class ChatTree {
 
         //ЕСЛИ НЕТ РОДИТЕЛЯ
         if (currentNodeTopology.getParent() == null) {
-            System.out.println("We don't have a parent!");
+            ConsoleSink.println("We don't have a parent!");
             return;
         }
 
@@ -383,26 +1037,18 @@ public class ChatTree {
         //новое сообщение от ребенка
         ChatInfoMessage packet = new ChatInfoMessage(CHILD);
         //установили получателем родителя
-        packet.setRecipient(new Node(currentNodeTopology.getParent().getAddress(), currentNodeTopology.getParent().getPort()));
-        //передали наше имя
+        packet.setRecipient(currentNodeTopology.getParent());
+        //передали наше имя и возможности
         packet.setNodeName(currentNode.getNodeName());
-        //рассказали родителю о нас
-        packet.send(socket);
+        packet.setCapabilities(getCapabilities());
         //добавили отправленное сообщение в список неподтвержденных
         addWaitingMessage(packet);
 
         for (;;) {
             try {
-                //ждем определенное время
-                synchronized (waitingReport) {
-                    waitingReport.wait(timeout);
-                }
-
-                //если пакет подтвержден
-                synchronized (waitingReport) {
-                    if (waitingReport.indexOf(packet) == -1)
-                        break;
-                }
+                //ждем определенное время, пока пакет не подтвержден
+                if (waitingReport.awaitRelease(packet, timeout))
+                    break;
             } catch (InterruptedException e) {}
         }
     }
@@ -414,29 +1060,29 @@ public class ChatTree {
         {
             ChatInfoMessage newParentPacket = null;
             ChatInfoMessage noParentPacket = null;
+            //снимок топологии: пока мы рассылаем сообщения, топологию может изменить цикл событий
+            NodeTopology.Snapshot topology = currentNodeTopology.getSnapshot();
 
             //Если нет родителя
-            if (currentNodeTopology.getParent() == null)
+            if (topology.getParent() == null)
             {
                 //ЕСЛИ ЕСТЬ ПОТОМКИ
-                if (currentNodeTopology.getChildrens().size() > 0)
+                if (topology.getChildrens().size() > 0)
                 {
                     //новым родителем станет кто-то из детей
-                    Node newParent = currentNodeTopology.getChildrens().iterator().next();
+                    Node newParent = topology.getChildrens().iterator().next();
                     //создаем INFO сообщение об отсутствии родителя
                     noParentPacket = new ChatInfoMessage(NOPARENT);
                     //получатель - ребенок
-                    noParentPacket.setRecipient(new Node(newParent.getAddress(), newParent.getPort()));
-                    //отправлем пакет
-                    noParentPacket.send(socket);
+                    noParentPacket.setRecipient(newParent);
                     //добавляем в список неподтвержденных
                     addWaitingMessage(noParentPacket);
 
                     //ЕСЛИ ПОТОМКОВ > 1
-                    if (currentNodeTopology.getChildrens().size() > 1)
+                    if (topology.getChildrens().size() > 1)
                     {
                         //создаем список всех потомков
-                        Set<Node> childrens = currentNodeTopology.getChildrens();
+                        Set<Node> childrens = new HashSet<>(topology.getChildrens());
                         //удаляем из него нового родителя
                         childrens.remove(newParent);
                         //создаем собщение с новым родителем
@@ -445,8 +1091,6 @@ public class ChatTree {
                         newParentPacket.setRecipient(childrens);
                         //рассказали про нового родителя
                         newParentPacket.setNewParentNode(newParent);
-                        //отправили пакет
-                        newParentPacket.send(socket);
                         //добавили в список неподтвержденных
                         addWaitingMessage(newParentPacket);
                     }
@@ -458,78 +1102,106 @@ public class ChatTree {
                 //сообщаем родителю, что у нас отключился потомок
                 noParentPacket = new ChatInfoMessage(NOCHILD);
                 //посылаем его родителю
-                noParentPacket.setRecipient(new Node(currentNodeTopology.getParent().getAddress(),
-                        currentNodeTopology.getParent().getPort()));
-                noParentPacket.send(socket);
+                noParentPacket.setRecipient(topology.getParent());
                 addWaitingMessage(noParentPacket);
 
                 //если есть дети
-                if (currentNodeTopology.getChildrens().size() > 0)
+                if (topology.getChildrens().size() > 0)
                 {
                     //собрали всех детей
-                    Set<Node> childrens = currentNodeTopology.getChildrens();
+                    Set<Node> childrens = topology.getChildrens();
                     //собщение о новом родителе
                     newParentPacket = new ChatInfoMessage(NEWPARENT);
                     newParentPacket.setRecipient(childrens);
                     //новый родитель для детей - наш родитель
-                    newParentPacket.setNewParentNode(currentNodeTopology.getParent());
-                    newParentPacket.send(socket);
+                    newParentPacket.setNewParentNode(topology.getParent());
                     addWaitingMessage(newParentPacket);
                 }
             }
 
             // Ждем подтверждения
-            synchronized (waitingReport) {
-                while (newParentPacket != null && waitingReport.contains(newParentPacket)) {
-                    try {
-                        waitingReport.wait(1);
-                    } catch (InterruptedException e) {}
-                }
+            while (newParentPacket != null && waitingReport.contains(newParentPacket)) {
+                try {
+                    waitingReport.awaitRelease(newParentPacket, timeout);
+                } catch (InterruptedException e) {}
             }
         }));
 
         // Основной цикл программы (получение текста для ввода)
         for (;;) {
             String userInput = "";
-            System.out.print('[' + currentNode.getNodeName() + "]: ");
+            ConsoleSink.print('[' + currentNode.getNodeName() + "]: ");
             Scanner scan = new Scanner(System.in);
             userInput += scan.nextLine();
-            sendMessage(userInput, null, 0);
+            sendMessage(userInput);
         }
     }
 
+    //отправка нашего текстового сообщения родителю и всем детям (из любого потока)
+    public void sendMessage(String text) {
+        sendMessage(text, null, 0);
+    }
+
     // В этой функии происходит отправка текстового сообщения всем получателям (детям и родителю текущего узла)
     private void sendMessage(String userInput, InetAddress address, int port) {
-        //записали сообщение
-        ChatTextMessage packet = new ChatTextMessage(userInput);
+        //коллекция получателей
+        Set<Node> recipients = getRelayRecipients(address, port);
+        byte[] textBytes = userInput.getBytes(StandardCharsets.UTF_8);
+
+        //соседям, которые поддерживают сжатие, отправляем сжатый текст (если он короче исходного)
+        if (compression && textBytes.length >= compressionThreshold) {
+            Set<Node> compressingRecipients = new HashSet<>();
+            for (Node recipient : recipients) {
+                if (recipient.isCompressionSupported())
+                    compressingRecipients.add(recipient);
+            }
+
+            byte[] compressedBytes = compressingRecipients.isEmpty() ? null : payloadCodec.compress(textBytes);
+            if (compressedBytes != null) {
+                recipients.removeAll(compressingRecipients);
+                sendText(compressedBytes, true, compressingRecipients);
+            }
+        }
+
+        if (!recipients.isEmpty()) {
+            metrics.rawPayloads.increment();
+            sendText(textBytes, false, recipients);
+        }
+    }
+
+    // Получатели сообщения: если мы написали это сообщение (address == null), то родитель и все дети,
+    // иначе все соседи, кроме того, от кого сообщение пришло
+    private Set<Node> getRelayRecipients(InetAddress address, int port) {
         //коллекция получателей
         Set<Node> recipients = new HashSet<>();
+        //снимок топологии, чтобы родитель и дети были согласованы между собой
+        NodeTopology.Snapshot topology = currentNodeTopology.getSnapshot();
 
         //если мы написали это сообщение
         if (address == null)
         {
             //если есть родитель
-            if (currentNodeTopology.getParent() != null)
+            if (topology.getParent() != null)
                 //добавляем родителя в список получателей
-                recipients.add(currentNodeTopology.getParent());
+                recipients.add(topology.getParent());
 
             //добавляем всех детей
-            recipients.addAll(currentNodeTopology.getChildrens());
+            recipients.addAll(topology.getChildrens());
         }
         //если сообщение пришло от кого-то
         else
         {
             //добавляем родителя, если сообщение пришло не от него
-            if (currentNodeTopology.getParent() != null)
-                if (currentNodeTopology.getParent().getAddress().equals(InetAddress.getLoopbackAddress())
-                        && currentNodeTopology.getParent().getPort() != port)
-                    recipients.add(currentNodeTopology.getParent());
-                else if (!currentNodeTopology.getParent().getAddress().equals(address)
-                        && currentNodeTopology.getParent().getPort() != port)
-                    recipients.add(currentNodeTopology.getParent());
+            if (topology.getParent() != null)
+                if (topology.getParent().getAddress().equals(InetAddress.getLoopbackAddress())
+                        && topology.getParent().getPort() != port)
+                    recipients.add(topology.getParent());
+                else if (!topology.getParent().getAddress().equals(address)
+                        && topology.getParent().getPort() != port)
+                    recipients.add(topology.getParent());
 
             //добавляем всех детей, кроме того от кого пришло сообщение
-            for (Node currentChild : currentNodeTopology.getChildrens()) {
+            for (Node currentChild : topology.getChildrens()) {
                 if (currentChild.getAddress().equals(InetAddress.getLoopbackAddress()) && currentChild.getPort() != port)
                     recipients.add(currentChild);
                 else if (!currentChild.getAddress().equals(address) && currentChild.getPort() != port)
@@ -537,12 +1209,43 @@ public class ChatTree {
             }
         }
 
+        return recipients;
+    }
+
+    //отправка текста (сжатого или в кодировке UTF-8) получателям
+    private void sendText(byte[] textBytes, boolean compressed, Set<Node> recipients) {
+        //текст, который не помещается в одну датаграмму, режем на фрагменты
+        if (TEXTPOS + textBytes.length > maxUDPPacketLength) {
+            sendFragments(textBytes, compressed, recipients);
+            return;
+        }
+
+        //записали сообщение
+        ChatTextMessage packet = new ChatTextMessage(textBytes, compressed);
         //добавлили получателей
         packet.setRecipient(recipients);
-        //отправили пакет
-        packet.send(socket);
         //ждем подтверждения
         addWaitingMessage(packet);
     }
+
+    // Отправка длинного текста фрагментами. Каждый фрагмент подтверждается и отправляется повторно отдельно,
+    // поэтому при потере датаграммы повторяется только потерянный фрагмент
+    private void sendFragments(byte[] textBytes, boolean compressed, Set<Node> recipients) {
+        int fragmentLength = maxUDPPacketLength - FRAGPOS;
+        int fragmentCount = (textBytes.length + fragmentLength - 1) / fragmentLength;
+        if (fragmentCount > 0xFFFF) {
+            ConsoleSink.println("[ERROR] Message is too long to be sent!");
+            return;
+        }
+
+        int messageId = nextFragmentedMessageId.getAndIncrement();
+        for (int i = 0; i < fragmentCount; i++) {
+            int offset = i * fragmentLength;
+            ChatFragmentMessage packet = new ChatFragmentMessage(textBytes, messageId, i, fragmentCount, offset,
+                    Math.min(fragmentLength, textBytes.length - offset), compressed);
+            packet.setRecipient(recipients);
+            addWaitingMessage(packet);
+        }
+    }
 }
 
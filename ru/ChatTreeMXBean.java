@@ -0,0 +1,52 @@
+package ru;
+
+// Метрики работающего узла для JMX (ru.chattree:type=ChatTree,name=<имя>,port=<порт>)
+public interface ChatTreeMXBean {
+    String getNodeName();
+
+    int getPort();
+
+    long getDatagramsSent();
+
+    long getDatagramsReceived();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    long getRetransmissions();
+
+    long getDeliveryGiveUps();
+
+    long getDuplicatesReceived();
+
+    double getDuplicateRate();
+
+    //сообщения, которые ждут подтверждения, и их размер
+    int getPendingMessages();
+
+    long getPendingOutboundBytes();
+
+    //сообщения, которые ждут места в окнах отправки
+    int getWindowQueuedMessages();
+
+    //время от первой отправки сообщения соседу до подтверждения
+    double getAckLatencyP50Millis();
+
+    double getAckLatencyP99Millis();
+
+    double getAckLatencyMaxMillis();
+
+    //время обработки одной входящей датаграммы
+    double getHandlerTimeP50Micros();
+
+    double getHandlerTimeP99Micros();
+
+    double getHandlerTimeMaxMicros();
+
+    //состояние и счетчики связей с соседями, по строке на соседа
+    String[] getNeighbors();
+
+    //все метрики одним текстом (тот же, что печатается периодически)
+    String getSnapshot();
+}
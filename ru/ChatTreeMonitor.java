@@ -0,0 +1,218 @@
+package ru;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Публикация метрик узла: MBean в платформенном MBeanServer (-Dchattree.jmx=false - не регистрировать)
+// и текстовый снимок, который печатается каждые chattree.metricsInterval секунд (0 - не печатать).
+// Все значения читаются из счетчиков без блокировок, поэтому мониторинг не мешает циклу событий
+public class ChatTreeMonitor implements ChatTreeMXBean {
+    private final ChatTree chatTree;
+    private final ChatMetrics metrics;
+
+    private final boolean jmx = Boolean.parseBoolean(System.getProperty("chattree.jmx", "true"));
+    private final int interval = Integer.getInteger("chattree.metricsInterval", 0);
+
+    private ObjectName objectName = null;
+    private ScheduledExecutorService snapshotPrinter = null;
+
+    ChatTreeMonitor(ChatTree _chatTree) {
+        chatTree = _chatTree;
+        metrics = _chatTree.metrics;
+    }
+
+    void start() {
+        if (jmx) {
+            try {
+                ObjectName name = new ObjectName("ru.chattree:type=ChatTree,name="
+                        + ObjectName.quote(getNodeName()) + ",port=" + getPort());
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+                objectName = name;
+            } catch (JMException e) {
+                ConsoleSink.println("[ERROR] Metrics MBean can't be registered: " + e.getMessage());
+            }
+        }
+
+        if (interval > 0) {
+            snapshotPrinter = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "metrics-" + getNodeName());
+                thread.setDaemon(true);
+                return thread;
+            });
+            snapshotPrinter.scheduleAtFixedRate(() -> ConsoleSink.print(getSnapshot()), interval, interval,
+                    TimeUnit.SECONDS);
+        }
+    }
+
+    void stop() {
+        if (snapshotPrinter != null)
+            snapshotPrinter.shutdownNow();
+
+        if (objectName != null) {
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                server.unregisterMBean(objectName);
+            } catch (JMException e) {
+                ConsoleSink.println("[ERROR] Metrics MBean can't be unregistered: " + e.getMessage());
+            }
+            objectName = null;
+        }
+    }
+
+    @Override
+    public String getNodeName() {
+        return chatTree.currentNode.getNodeName();
+    }
+
+    @Override
+    public int getPort() {
+        return chatTree.currentNode.getPort();
+    }
+
+    @Override
+    public long getDatagramsSent() {
+        return metrics.getDatagramsSent();
+    }
+
+    @Override
+    public long getDatagramsReceived() {
+        return metrics.getDatagramsReceived();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return metrics.getBytesSent();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return metrics.getBytesReceived();
+    }
+
+    @Override
+    public long getRetransmissions() {
+        return metrics.getRetransmissions();
+    }
+
+    @Override
+    public long getDeliveryGiveUps() {
+        return metrics.getDeliveryGiveUps();
+    }
+
+    @Override
+    public long getDuplicatesReceived() {
+        return metrics.getDuplicatesReceived();
+    }
+
+    @Override
+    public double getDuplicateRate() {
+        return metrics.getDuplicateRate();
+    }
+
+    @Override
+    public int getPendingMessages() {
+        return chatTree.waitingReport.size();
+    }
+
+    @Override
+    public long getPendingOutboundBytes() {
+        return chatTree.waitingReport.getPendingBytes();
+    }
+
+    @Override
+    public int getWindowQueuedMessages() {
+        int queued = 0;
+        for (Node node : chatTree.currentNodeTopology.getTopology())
+            queued += node.getSendWindow().getQueuedMessages();
+        return queued;
+    }
+
+    @Override
+    public double getAckLatencyP50Millis() {
+        return metrics.ackLatency.getPercentile(50) / 1e6;
+    }
+
+    @Override
+    public double getAckLatencyP99Millis() {
+        return metrics.ackLatency.getPercentile(99) / 1e6;
+    }
+
+    @Override
+    public double getAckLatencyMaxMillis() {
+        return metrics.ackLatency.getMax() / 1e6;
+    }
+
+    @Override
+    public double getHandlerTimeP50Micros() {
+        return metrics.handlerTime.getPercentile(50) / 1e3;
+    }
+
+    @Override
+    public double getHandlerTimeP99Micros() {
+        return metrics.handlerTime.getPercentile(99) / 1e3;
+    }
+
+    @Override
+    public double getHandlerTimeMaxMicros() {
+        return metrics.handlerTime.getMax() / 1e3;
+    }
+
+    @Override
+    public String[] getNeighbors() {
+        List<String> lines = new ArrayList<>();
+        Map<SocketAddress, ChatMetrics.NeighborCounters> counters = metrics.getNeighbors();
+        Set<SocketAddress> described = new HashSet<>();
+
+        //соседи из топологии: состояние связи и счетчики
+        for (Node node : chatTree.currentNodeTopology.getTopology()) {
+            InetSocketAddress address = node.getSocketAddress();
+            described.add(address);
+            lines.add(ChatTree.describeLink(node) + ' ' + describe(counters.get(address)));
+        }
+
+        //адреса, которые уже не (или еще не) в топологии
+        for (Map.Entry<SocketAddress, ChatMetrics.NeighborCounters> entry : counters.entrySet()) {
+            if (!described.contains(entry.getKey()))
+                lines.add("- " + entry.getKey() + ' ' + describe(entry.getValue()));
+        }
+        if (metrics.getOtherNeighbors().getDatagramsReceived() + metrics.getOtherNeighbors().getDatagramsSent() > 0)
+            lines.add("- other " + describe(metrics.getOtherNeighbors()));
+
+        return lines.toArray(new String[0]);
+    }
+
+    @Override
+    public String getSnapshot() {
+        StringBuilder snapshot = new StringBuilder();
+        snapshot.append(String.format("[Metrics] %s:%d pending=%d (%d B) windowQueue=%d retransmissions=%d"
+                        + " giveUps=%d duplicates=%d (%.2f%%) ackLatency p50=%.1fms p99=%.1fms max=%.1fms"
+                        + " handler p50=%.1fus p99=%.1fus max=%.1fus%n",
+                getNodeName(), getPort(), getPendingMessages(), getPendingOutboundBytes(), getWindowQueuedMessages(),
+                getRetransmissions(), getDeliveryGiveUps(), getDuplicatesReceived(), getDuplicateRate() * 100,
+                getAckLatencyP50Millis(), getAckLatencyP99Millis(), getAckLatencyMaxMillis(),
+                getHandlerTimeP50Micros(), getHandlerTimeP99Micros(), getHandlerTimeMaxMicros()));
+        for (String neighbor : getNeighbors())
+            snapshot.append("[Metrics]   ").append(neighbor).append(System.lineSeparator());
+        snapshot.append("[Metrics]   ").append(metrics).append(System.lineSeparator());
+        return snapshot.toString();
+    }
+
+    private static String describe(ChatMetrics.NeighborCounters counters) {
+        if (counters == null)
+            return "in=0 (0 B) out=0 (0 B)";
+        return String.format("in=%d (%d B) out=%d (%d B)", counters.getDatagramsReceived(),
+                counters.getBytesReceived(), counters.getDatagramsSent(), counters.getBytesSent());
+    }
+}
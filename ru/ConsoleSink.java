@@ -0,0 +1,203 @@
+package ru;
+
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Асинхронный вывод в консоль.
+// Строки кладутся в ограниченное кольцо без блокировок, а печатает их отдельный поток, поэтому медленный
+// терминал или перенаправленный вывод не задерживает прием датаграмм и повторную отправку.
+// Размер кольца задается через -Dchattree.consoleBuffer (строк), поведение при переполнении
+// (-Dchattree.consoleOverflow):
+//  DROP  - строка выбрасывается и учитывается в счетчике, поток вывода потом сообщает, сколько строк пропало;
+//  BLOCK - поток ждет места в кольце (поток цикла событий ждать не может, его строки выбрасываются).
+// Вывод идет в текущий System.out.
+public final class ConsoleSink {
+    public enum Policy {
+        DROP,
+        BLOCK
+    }
+
+    //как часто ждущий поток проверяет, освободилось ли место
+    private static final long BLOCK_CHECK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    //сколько ждать вывода оставшихся строк при завершении программы
+    private static final long FLUSH_TIMEOUT_MILLIS = 1000;
+
+    private static final ConsoleSink INSTANCE = new ConsoleSink(Integer.getInteger("chattree.consoleBuffer", 8192));
+    //потоки, которые не могут ждать места в кольце (поток цикла событий)
+    private static final ThreadLocal<Boolean> nonBlocking = ThreadLocal.withInitial(() -> false);
+
+    private volatile Policy policy;
+
+    // Кольцо (ограниченная очередь Вьюкова): sequences[i] == номер записи - ячейка свободна для нее,
+    // номер записи + 1 - строка записана и ее можно печатать
+    private final String[] lines;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    //номер следующей записи (общий для производителей) и следующей печатаемой строки (только поток вывода)
+    private final AtomicLong tail = new AtomicLong();
+    private long head = 0;
+
+    private final LongAdder droppedLines = new LongAdder();
+    private long reportedDroppedLines = 0;
+    //поток вывода спит и его нужно разбудить
+    private final AtomicBoolean sleeping = new AtomicBoolean(false);
+    private final Thread writer;
+
+    private ConsoleSink(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        lines = new String[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+            sequences.set(i, i);
+        mask = size - 1;
+
+        writer = new Thread(this::run, "console");
+        writer.setDaemon(true);
+        writer.start();
+        //при завершении программы допечатываем то, что осталось в кольце
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "console-flush"));
+
+        //политику разбираем, когда кольцо уже готово: ошибку в ней можно вывести обычной строкой
+        policy = parsePolicy(System.getProperty("chattree.consoleOverflow"));
+    }
+
+    //вывод строки
+    public static void println(String line) {
+        INSTANCE.write(line + System.lineSeparator());
+    }
+
+    //вывод текста без перевода строки (приглашение ввода)
+    public static void print(String text) {
+        INSTANCE.write(text);
+    }
+
+    public static void setPolicy(Policy policy) {
+        INSTANCE.policy = policy;
+    }
+
+    public static Policy getPolicy() {
+        return INSTANCE.policy;
+    }
+
+    //сколько строк выброшено из-за переполнения кольца
+    public static long getDroppedLines() {
+        return INSTANCE.droppedLines.sum();
+    }
+
+    //текущий поток не должен ждать места в кольце (вызывается потоком цикла событий)
+    static void markNonBlocking() {
+        nonBlocking.set(true);
+    }
+
+    // Политика из -Dchattree.consoleOverflow. Разбирается при инициализации класса, поэтому неизвестное значение
+    // не должно бросать исключение (класс стал бы недоступен для всего вывода): вместо него используется DROP
+    private Policy parsePolicy(String value) {
+        if (value == null)
+            return Policy.DROP;
+
+        try {
+            return Policy.valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            write("[ERROR] Unknown chattree.consoleOverflow: " + value + ", " + Policy.DROP + " is used"
+                    + System.lineSeparator());
+            return Policy.DROP;
+        }
+    }
+
+    private void write(String text) {
+        if (!offer(text)) {
+            if (policy == Policy.DROP || nonBlocking.get()) {
+                droppedLines.increment();
+                return;
+            }
+
+            do {
+                wakeWriter();
+                LockSupport.parkNanos(BLOCK_CHECK_NANOS);
+            } while (!offer(text));
+        }
+        wakeWriter();
+    }
+
+    private void wakeWriter() {
+        if (sleeping.get() && sleeping.compareAndSet(true, false))
+            LockSupport.unpark(writer);
+    }
+
+    //добавление строки в кольцо, false - кольцо заполнено
+    private boolean offer(String text) {
+        for (;;) {
+            long position = tail.get();
+            int index = (int) position & mask;
+            long sequence = sequences.get(index);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    lines[index] = text;
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+            } else if (sequence < position) {
+                return false;
+            }
+        }
+    }
+
+    //следующая строка из кольца (только поток вывода), null - кольцо пусто
+    private String poll() {
+        int index = (int) head & mask;
+        if (sequences.get(index) != head + 1)
+            return null;
+
+        String text = lines[index];
+        lines[index] = null;
+        sequences.set(index, head + lines.length);
+        head++;
+        return text;
+    }
+
+    private void run() {
+        for (;;) {
+            if (!drain()) {
+                //флаг ставим до повторной проверки: строка, добавленная после нее, разбудит поток
+                sleeping.set(true);
+                if (!drain())
+                    LockSupport.park(this);
+                sleeping.set(false);
+            }
+        }
+    }
+
+    // Печать всего, что есть в кольце, вернет false, если кольцо было пусто
+    private synchronized boolean drain() {
+        PrintStream out = System.out;
+        boolean printed = false;
+        String text;
+        while ((text = poll()) != null) {
+            out.print(text);
+            printed = true;
+        }
+
+        long dropped = droppedLines.sum();
+        if (dropped != reportedDroppedLines) {
+            out.println("[Console] " + (dropped - reportedDroppedLines) + " lines were dropped (output is too slow)");
+            reportedDroppedLines = dropped;
+            printed = true;
+        }
+
+        if (printed)
+            out.flush();
+        return printed;
+    }
+
+    private void flush() {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FLUSH_TIMEOUT_MILLIS);
+        while (drain() && System.nanoTime() - deadline < 0) {
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package ru;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import static ru.chatpacket.ProtocolMagicValues.*;
+
+// Упаковка сообщений, которые идут одному соседу, в общую датаграмму BATCH (в духе алгоритма Нейгла / linger.ms).
+// Кадры копируются в буфер связи, пока он не заполнится до максимального размера датаграммы или не истечет время
+// ожидания linger. При linger = 0 буферы отправляются в конце текущей итерации цикла событий, то есть упаковываются
+// только сообщения, которые появились одновременно, и задержки не добавляется.
+// Формат BATCH: тип (1 байт) | количество кадров (4 байта) | { длина кадра (2 байта) | кадр } ...
+// Если в буфере оказался один кадр, то он отправляется как обычное сообщение, без заголовка BATCH.
+// Не потокобезопасный: используется только потоком цикла событий.
+class DatagramBatcher {
+    // Отправка готовой датаграммы
+    interface DatagramWriter {
+        void write(ByteBuffer datagram, SocketAddress target);
+    }
+
+    // Датаграмма, которая собирается для одного соседа
+    private static class LinkBatch {
+        final SocketAddress target;
+        final ByteBuffer buffer;
+        int frames = 0;
+        TimerWheel.Timeout lingerTimeout = null;
+
+        LinkBatch(SocketAddress _target, ByteBuffer _buffer) {
+            target = _target;
+            buffer = _buffer;
+        }
+    }
+
+    private final BufferPool bufferPool;
+    private final DatagramWriter writer;
+    private final TimerWheel wheel;
+    private final ChatMetrics metrics;
+    private final int maxDatagramLength;
+
+    //датаграммы, в которых уже есть кадры (ключ - адрес соседа)
+    private final Map<SocketAddress, LinkBatch> batches = new HashMap<>();
+
+    //упаковка включена
+    private volatile boolean enabled = Boolean.parseBoolean(System.getProperty("chattree.batching", "true"));
+    //сколько мс датаграмма ждет новых кадров (0 - до конца итерации цикла событий)
+    private volatile int linger = Integer.getInteger("chattree.linger", 0);
+
+    DatagramBatcher(BufferPool _bufferPool, DatagramWriter _writer, TimerWheel _wheel, ChatMetrics _metrics,
+                    int _maxDatagramLength) {
+        bufferPool = _bufferPool;
+        writer = _writer;
+        wheel = _wheel;
+        metrics = _metrics;
+        maxDatagramLength = _maxDatagramLength;
+    }
+
+    void setEnabled(boolean _enabled) {
+        enabled = _enabled;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    void setLinger(int _linger) {
+        linger = _linger;
+    }
+
+    int getLinger() {
+        return linger;
+    }
+
+    // Добавление кадра в датаграмму соседа (кадр копируется, позиция буфера frame сдвигается на его конец).
+    // Кадр, который не поместится в датаграмму BATCH даже один, отправляется сразу
+    void append(ByteBuffer frame, SocketAddress target) {
+        int frameLength = frame.remaining();
+        LinkBatch batch = batches.get(target);
+
+        if (!enabled || BATCHFRAMESPOS + BATCHFRAMEHEADERLEN + frameLength > maxDatagramLength) {
+            //соблюдаем порядок: сначала то, что уже накоплено для соседа
+            if (batch != null)
+                flush(batch);
+            writer.write(frame, target);
+            return;
+        }
+
+        if (batch != null && batch.buffer.remaining() < BATCHFRAMEHEADERLEN + frameLength) {
+            flush(batch);
+            batch = null;
+        }
+
+        if (batch == null) {
+            batch = new LinkBatch(target, bufferPool.acquire(maxDatagramLength));
+            batch.buffer.limit(maxDatagramLength);
+            batch.buffer.put(BATCH);
+            batch.buffer.putInt(0);
+            batches.put(target, batch);
+
+            int lingerTime = linger;
+            if (lingerTime > 0) {
+                LinkBatch lingerBatch = batch;
+                batch.lingerTimeout = wheel.schedule(() -> flush(lingerBatch), lingerTime);
+            }
+        }
+
+        batch.buffer.putShort((short) frameLength);
+        batch.buffer.put(frame);
+        batch.frames++;
+    }
+
+    //конец итерации цикла событий: без linger отправляем все накопленное
+    void endOfIteration() {
+        if (linger <= 0)
+            flushAll();
+    }
+
+    void flushAll() {
+        Iterator<LinkBatch> iterator = batches.values().iterator();
+        while (iterator.hasNext()) {
+            LinkBatch batch = iterator.next();
+            iterator.remove();
+            send(batch);
+        }
+    }
+
+    private void flush(LinkBatch batch) {
+        //датаграмма уже отправлена (например, таймер сработал после переполнения)
+        if (batches.get(batch.target) != batch)
+            return;
+
+        batches.remove(batch.target);
+        send(batch);
+    }
+
+    private void send(LinkBatch batch) {
+        if (batch.lingerTimeout != null)
+            wheel.cancel(batch.lingerTimeout);
+
+        ByteBuffer buffer = batch.buffer;
+        buffer.flip();
+        if (batch.frames == 1) {
+            //один кадр отправляем как есть
+            buffer.position(BATCHFRAMESPOS + BATCHFRAMEHEADERLEN);
+        } else {
+            buffer.putInt(BATCHCOUNTPOS, batch.frames);
+            metrics.batchesSent.increment();
+            metrics.framesBatched.add(batch.frames);
+        }
+
+        writer.write(buffer, batch.target);
+        bufferPool.release(buffer);
+    }
+}
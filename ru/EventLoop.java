@@ -0,0 +1,477 @@
+package ru;
+
+import ru.chatpacket.ChatFrame;
+import ru.chatpacket.ChatPacket;
+import ru.chatpacket.DeliveryDataTuple;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import static ru.chatpacket.ProtocolMagicValues.SEQNUMPOS;
+
+// Цикл событий узла, который единолично владеет сокетом.
+// Поток цикла ждет в Selector готовности канала на чтение/запись или ближайшего тика колеса таймеров,
+// принимает все пришедшие датаграммы, отправляет исходящие и выполняет задачи, переданные из других потоков.
+// Сообщения и задачи из других потоков передаются через неблокирующие очереди и забираются пачками,
+// поэтому ни поток ввода, ни цикл не ждут друг друга на мониторах.
+// Все операции с каналом выполняются только в потоке цикла.
+public class EventLoop {
+    // Обработчик входящей датаграммы (вызывается в потоке цикла, буфер валиден только во время вызова)
+    public interface DatagramHandler {
+        void handle(ByteBuffer datagram, InetSocketAddress sender);
+    }
+
+    // Обработчик исходящего сообщения, переданного из другого потока (вызывается в потоке цикла)
+    public interface OutboundHandler {
+        void handle(ChatPacket packet);
+    }
+
+    // Датаграмма, которую не удалось отправить сразу (буфер сокета заполнен)
+    private static class PendingWrite {
+        final ByteBuffer datagram;
+        final SocketAddress target;
+
+        PendingWrite(ByteBuffer _datagram, SocketAddress _target) {
+            datagram = _datagram;
+            target = _target;
+        }
+    }
+
+    //максимальный размер датаграммы UDP
+    private static final int MAX_DATAGRAM_LENGTH = 65507;
+    //длительность тика колеса таймеров и количество ячеек в нем
+    private static final long TICK_DURATION = 10;
+    private static final int TICKS_PER_WHEEL = 512;
+    //сколько сообщений и задач из других потоков забираем за одну итерацию (чтобы не задерживать прием и таймеры)
+    private static final int MAX_DRAIN = 1024;
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final SelectionKey key;
+    private final DatagramHandler handler;
+    private final ChatMetrics metrics;
+    private final TimerWheel wheel = new TimerWheel(TICK_DURATION, TICKS_PER_WHEEL);
+
+    //буфер для приема датаграмм
+    private final ByteBuffer receiveBuffer;
+    //пул буферов для исходящих датаграмм
+    private final BufferPool bufferPool = new BufferPool();
+    //упаковка сообщений одному соседу в общие датаграммы
+    private final DatagramBatcher batcher;
+    //закодированные датаграммы сообщений, которые еще ждут подтверждения (общие для всех получателей и повторных отправок)
+    private final Map<ChatPacket, ByteBuffer> datagrams = new IdentityHashMap<>();
+    //датаграммы, которые ждут готовности канала на запись
+    private final Queue<PendingWrite> pendingWrites = new ArrayDeque<>();
+    //отдельные отправители для каждого соседа (null - датаграммы отправляет сам цикл)
+    private final NeighborSenders neighborSenders;
+    //задачи из других потоков
+    private final MpscQueue<Runnable> tasks = new MpscQueue<>();
+    //исходящие сообщения из других потоков и их обработчик
+    private final MpscQueue<ChatPacket> outbound = new MpscQueue<>();
+    private volatile OutboundHandler outboundHandler = null;
+    //потребители очередей (созданы один раз, чтобы итерация цикла не создавала объектов)
+    private final Consumer<Runnable> taskRunner = this::runTask;
+    private final Consumer<ChatPacket> outboundRunner = this::handleOutbound;
+    //цикл уже будят (лишние вызовы wakeup - это системные вызовы)
+    private final AtomicBoolean wakeupRequested = new AtomicBoolean(false);
+    //эмуляция сети для входящих датаграмм (null - датаграммы сразу передаются обработчику)
+    private volatile LinkEmulator linkEmulator = null;
+    //обработчик датаграмм, который не дает исключению остановить прием
+    private final DatagramHandler dispatcher = this::dispatch;
+    //задача, которая выполняется на каждой итерации цикла (не реже, чем раз в тик колеса таймеров)
+    private volatile Runnable iterationTask = null;
+    //интерес к чтению сокета: OP_READ или 0, пока чтение остановлено (только поток цикла)
+    private int readInterest = SelectionKey.OP_READ;
+    private final Runnable readResumer = this::enableReading;
+    //вызывается перед возобновлением чтения: вернет false, если чтение должно остаться остановленным
+    private volatile BooleanSupplier readResumeHandler = null;
+
+    private final Thread loopThread;
+
+    public EventLoop(int port, int maxDatagramLength, DatagramHandler _handler, ChatMetrics _metrics) throws IOException {
+        handler = _handler;
+        metrics = _metrics;
+        receiveBuffer = ByteBuffer.allocateDirect(maxDatagramLength);
+        batcher = new DatagramBatcher(bufferPool, this::write, wheel, metrics, maxDatagramLength);
+
+        channel = DatagramChannel.open();
+        try {
+            //отключили broadcast рассылку
+            channel.setOption(StandardSocketOptions.SO_BROADCAST, false);
+            channel.bind(new InetSocketAddress(port));
+            channel.configureBlocking(false);
+
+            selector = Selector.open();
+            key = channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        //отправители по соседям: медленный или недоступный сосед не задерживает отправку остальным
+        neighborSenders = Boolean.getBoolean("chattree.neighborSenders") ? new NeighborSenders(channel, bufferPool, metrics) : null;
+        loopThread = new Thread(this::run, "event-loop");
+    }
+
+    public void start() {
+        loopThread.start();
+    }
+
+    //остановка цикла: сокет закроет сам поток цикла, а если цикл не запускали (бенчмарки) - вызывающий поток
+    public void stop() {
+        if (loopThread.getState() == Thread.State.NEW) {
+            close();
+            return;
+        }
+        loopThread.interrupt();
+        selector.wakeup();
+    }
+
+    //адрес, к которому привязан канал
+    public InetSocketAddress getLocalAddress() throws IOException {
+        return (InetSocketAddress) channel.getLocalAddress();
+    }
+
+    public TimerWheel getTimerWheel() {
+        return wheel;
+    }
+
+    //упаковка сообщений в датаграммы BATCH и время ожидания (0 - до конца итерации цикла)
+    public void setBatching(boolean enabled, int linger) {
+        batcher.setEnabled(enabled);
+        batcher.setLinger(linger);
+    }
+
+    public boolean isBatching() {
+        return batcher.isEnabled();
+    }
+
+    public int getLinger() {
+        return batcher.getLinger();
+    }
+
+    //кто отправляет датаграммы: сам цикл или отправители соседей (на виртуальных или обычных потоках)
+    public String getSenderMode() {
+        if (neighborSenders == null)
+            return "event-loop";
+        return neighborSenders.isVirtual() ? "neighbor-virtual" : "neighbor-platform";
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == loopThread;
+    }
+
+    //эмуляция сети для входящих датаграмм (эмулятор используется только потоком цикла)
+    public void setLinkEmulator(LinkEmulator emulator) {
+        linkEmulator = emulator;
+    }
+
+    public void setIterationTask(Runnable task) {
+        iterationTask = task;
+    }
+
+    public void setOutboundHandler(OutboundHandler handler) {
+        outboundHandler = handler;
+    }
+
+    //выполнить задачу в потоке цикла
+    public void execute(Runnable task) {
+        tasks.offer(task);
+        wakeup();
+    }
+
+    //передать исходящее сообщение обработчику в потоке цикла (из любого потока)
+    public void submit(ChatPacket packet) {
+        outbound.offer(packet);
+        wakeup();
+    }
+
+    // Остановка чтения сокета (только в потоке цикла): обработчики не успевают за приемом, и новые датаграммы
+    // ждут в буфере сокета. Таймеры, задачи и отправка продолжают работать
+    public void pauseReading() {
+        if (readInterest == 0)
+            return;
+        readInterest = 0;
+        metrics.readPauses.increment();
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+    }
+
+    //возобновление чтения сокета (из любого потока)
+    public void resumeReading() {
+        execute(readResumer);
+    }
+
+    // Обработчик, который перед возобновлением чтения передает дальше задержанные кадры (вызывается в потоке цикла)
+    public void setReadResumeHandler(BooleanSupplier handler) {
+        readResumeHandler = handler;
+    }
+
+    private void enableReading() {
+        if (readInterest != 0 || !key.isValid())
+            return;
+        BooleanSupplier resumeHandler = readResumeHandler;
+        if (resumeHandler != null && !resumeHandler.getAsBoolean())
+            return;
+        readInterest = SelectionKey.OP_READ;
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+    }
+
+    private void wakeup() {
+        if (!inEventLoop() && wakeupRequested.compareAndSet(false, true))
+            selector.wakeup();
+    }
+
+    private void run() {
+        //поток цикла не ждет места в буфере консоли
+        ConsoleSink.markNonBlocking();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                //ждем событий на канале, но не дольше, чем до следующего тика колеса таймеров
+                long selectTimeout = wheel.nextTickTime() - TimerWheel.currentTime();
+                LinkEmulator emulator = linkEmulator;
+                //и не дольше, чем до доставки датаграммы, задержанной эмуляцией сети
+                if (emulator != null)
+                    selectTimeout = Math.min(selectTimeout, emulator.nextDeliveryDelay());
+                //флаг сбрасываем до проверки очередей: элемент, добавленный после проверки, разбудит select
+                wakeupRequested.set(false);
+                if (tasks.isEmpty() && outbound.isEmpty() && selectTimeout > 0)
+                    selector.select(selectTimeout);
+                else
+                    selector.selectNow();
+
+                if (key.isValid() && key.isReadable())
+                    readDatagrams();
+                if (emulator != null)
+                    emulator.deliverDue(dispatcher);
+                if (key.isValid() && key.isWritable())
+                    flushPendingWrites();
+                selector.selectedKeys().clear();
+
+                runTasks();
+                drainOutbound();
+                wheel.advance();
+                runIterationTask();
+                //отправляем датаграммы, накопленные за итерацию
+                batcher.endOfIteration();
+            } catch (IOException e) {
+                ConsoleSink.println("[I/O Thread Message] Some problems with packet receiving");
+                ConsoleSink.println(e.getMessage());
+            }
+        }
+
+        close();
+    }
+
+    private void close() {
+        if (neighborSenders != null)
+            neighborSenders.shutdown();
+        try {
+            selector.close();
+            channel.close();
+        } catch (IOException e) {
+            ConsoleSink.println("[I/O Thread Message] Some problems with socket closing");
+        }
+    }
+
+    //читаем все датаграммы, которые уже пришли
+    private void readDatagrams() throws IOException {
+        //чтение могли остановить при обработке предыдущей датаграммы
+        while (readInterest != 0) {
+            receiveBuffer.clear();
+            InetSocketAddress sender = (InetSocketAddress) channel.receive(receiveBuffer);
+            if (sender == null)
+                return;
+
+            receiveBuffer.flip();
+            metrics.onDatagramReceived(sender, receiveBuffer.remaining());
+            LinkEmulator emulator = linkEmulator;
+            if (emulator != null)
+                emulator.receive(receiveBuffer, sender, dispatcher);
+            else
+                dispatch(receiveBuffer, sender);
+        }
+    }
+
+    private void dispatch(ByteBuffer datagram, InetSocketAddress sender) {
+        long start = System.nanoTime();
+        try {
+            handler.handle(datagram, sender);
+        } catch (RuntimeException e) {
+            ConsoleSink.println("[I/O Thread Message] Invalid packet from " + sender);
+        }
+        metrics.handlerTime.record(System.nanoTime() - start);
+    }
+
+    private void runIterationTask() {
+        Runnable task = iterationTask;
+        if (task == null)
+            return;
+
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            ConsoleSink.println("[I/O Thread Message] Task failed: " + e.getMessage());
+        }
+    }
+
+    private void runTasks() {
+        tasks.drain(taskRunner, MAX_DRAIN);
+    }
+
+    private void runTask(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            ConsoleSink.println("[I/O Thread Message] Task failed: " + e.getMessage());
+        }
+    }
+
+    private void drainOutbound() {
+        if (outboundHandler != null)
+            outbound.drain(outboundRunner, MAX_DRAIN);
+    }
+
+    private void handleOutbound(ChatPacket packet) {
+        try {
+            outboundHandler.handle(packet);
+        } catch (RuntimeException e) {
+            ConsoleSink.println("[I/O Thread Message] Message can't be sent: " + e.getMessage());
+        }
+    }
+
+    //отправка сообщения всем получателям, которые еще не подтвердили доставку
+    public void send(ChatPacket packet) {
+        for (DeliveryDataTuple recipient : packet.getRecipients())
+            send(packet, recipient);
+    }
+
+    // Отправка сообщения одному получателю (только в потоке цикла).
+    // Сообщение кодируется один раз в буфер из пула, для получателя в нем меняется только sequence number,
+    // и кадр уходит в датаграмму, которая собирается для этого соседа
+    public void send(ChatPacket packet, DeliveryDataTuple recipient) {
+        ByteBuffer datagram = datagrams.get(packet);
+        if (datagram == null) {
+            datagram = encode(packet);
+            if (datagram == null)
+                return;
+            datagrams.put(packet, datagram);
+        }
+
+        datagram.putInt(SEQNUMPOS, recipient.sequenceNumber);
+        batcher.append(datagram, recipient.recipient.getSocketAddress());
+        datagram.rewind();
+
+        //отметили время отправки и увеличили количество отправлений
+        recipient.lastSendingTime = System.nanoTime();
+        if (recipient.sendCounter == 0)
+            recipient.firstSendingTime = recipient.lastSendingTime;
+        recipient.sendCounter++;
+    }
+
+    //кодирование сообщения в буфер из пула, null - если сообщение не помещается в датаграмму
+    private ByteBuffer encode(ChatPacket packet) {
+        if (packet.getLength() > MAX_DATAGRAM_LENGTH) {
+            ConsoleSink.println("[I/O Thread Message] Message is too long to be sent");
+            return null;
+        }
+
+        ByteBuffer datagram = bufferPool.acquire(packet.getLength());
+        packet.encode(datagram);
+        datagram.flip();
+        return datagram;
+    }
+
+    // Копия принятого кадра в буфере из пула (только в потоке цикла).
+    // Буфер приема переиспользуется, поэтому кадр, который пересылается дальше, копируется один раз
+    public ByteBuffer copyFrame(ChatFrame frame) {
+        ByteBuffer datagram = bufferPool.acquire(frame.length());
+        datagram.put(0, frame.buffer(), frame.offset(), frame.length());
+        datagram.limit(frame.length());
+        return datagram;
+    }
+
+    // Сообщение уже закодировано в буфер из пула (copyFrame): отправляем его из этого буфера,
+    // а после доставки буфер возвращается в пул (только в потоке цикла)
+    public void adoptDatagram(ChatPacket packet, ByteBuffer datagram) {
+        ByteBuffer oldDatagram = datagrams.put(packet, datagram);
+        if (oldDatagram != null && oldDatagram != datagram)
+            bufferPool.release(oldDatagram);
+    }
+
+    //копия кадра (copyFrame), которая не понадобилась (сообщение не принято к отправке), возвращается в пул
+    public void releaseFrame(ByteBuffer datagram) {
+        bufferPool.release(datagram);
+    }
+
+    //сообщение больше не будет отправляться, возвращаем его датаграмму в пул
+    public void release(ChatPacket packet) {
+        if (!inEventLoop()) {
+            execute(() -> release(packet));
+            return;
+        }
+
+        ByteBuffer datagram = datagrams.remove(packet);
+        if (datagram != null)
+            bufferPool.release(datagram);
+    }
+
+    //отправка готовой датаграммы (только в потоке цикла)
+    public void write(ByteBuffer datagram, SocketAddress target) {
+        int length = datagram.remaining();
+        if (neighborSenders != null) {
+            //датаграмма, выброшенная из-за заполненного ящика, отправленной не считается
+            if (neighborSenders.send(datagram, target))
+                metrics.onDatagramSent(target, length);
+            return;
+        }
+
+        metrics.onDatagramSent(target, length);
+
+        try {
+            //соблюдаем порядок: пока есть отложенные датаграммы, новые встают за ними
+            if (pendingWrites.isEmpty() && channel.send(datagram, target) > 0)
+                return;
+        } catch (IOException e) {
+            ConsoleSink.println("I/O Error! Can't sending to client " + target);
+            return;
+        }
+
+        //буфер сокета заполнен, копируем датаграмму и ждем готовности канала на запись
+        ByteBuffer copy = bufferPool.acquire(datagram.remaining());
+        copy.put(datagram);
+        copy.flip();
+        pendingWrites.add(new PendingWrite(copy, target));
+        key.interestOps(readInterest | SelectionKey.OP_WRITE);
+    }
+
+    private void flushPendingWrites() {
+        PendingWrite pendingWrite;
+        while ((pendingWrite = pendingWrites.peek()) != null) {
+            try {
+                if (channel.send(pendingWrite.datagram, pendingWrite.target) == 0)
+                    return;
+            } catch (IOException e) {
+                //датаграмму не отправить (например, порт получателя недоступен): выбрасываем ее,
+                //чтобы она не задерживала датаграммы остальным соседям
+                ConsoleSink.println("I/O Error! Can't sending to client " + pendingWrite.target);
+            }
+            pendingWrites.poll();
+            bufferPool.release(pendingWrite.datagram);
+        }
+
+        key.interestOps(readInterest);
+    }
+}
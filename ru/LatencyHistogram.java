@@ -0,0 +1,82 @@
+package ru;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Гистограмма длительностей в наносекундах без блокировок.
+// Значения до 16 хранятся точно, дальше каждая степень двойки делится на 8 ячеек (точность около 12%),
+// поэтому запись - одно атомарное увеличение счетчика ячейки, а вся гистограмма занимает около 4 КБ.
+// Писать и читать можно из любых потоков, перцентили считаются по текущим счетчикам.
+public class LatencyHistogram {
+    //точно хранимые значения и количество ячеек на степень двойки
+    private static final int LINEAR_BUCKETS = 16;
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = LINEAR_BUCKETS + (63 - 4) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        counts.getAndIncrement(bucket(value));
+        count.increment();
+        sum.add(value);
+
+        long currentMax;
+        while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) {
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long records = count.sum();
+        return records == 0 ? 0 : (double) sum.sum() / records;
+    }
+
+    //значение, не больше которого percent % записанных значений (верхняя граница ячейки)
+    public long getPercentile(double percent) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            total += counts.get(i);
+        if (total == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(percent / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(upperBound(i), max.get());
+        }
+        return max.get();
+    }
+
+    private static int bucket(long value) {
+        if (value < LINEAR_BUCKETS)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_BUCKETS + (exponent - 4) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < LINEAR_BUCKETS)
+            return bucket;
+        int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 4;
+        int subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (SUB_BUCKETS + subBucket) * width + width - 1;
+    }
+}
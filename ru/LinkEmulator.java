@@ -0,0 +1,226 @@
+package ru;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Эмуляция сети между сокетом и узлом: входящие датаграммы каждого соседа проходят через его связь
+// с заданными свойствами (LinkProfile) - задержкой, потерями (в том числе пачками по модели Гилберта-Эллиотта),
+// переупорядочиванием, дублированием и ограничением скорости. Направление A -> B эмулирует узел B.
+// Случайные решения принимаются генератором связи, который зависит только от seed и адреса соседа,
+// поэтому при тех же адресах и том же порядке датаграмм эмуляция повторяется.
+// Свойства связи берутся (по порядку): заданные для соседа через setProfile, системное свойство
+// -Dchattree.link.<ip>:<порт>=<свойства>, свойства по умолчанию.
+// Используется только потоком цикла событий.
+public class LinkEmulator {
+    // Связь с одним соседом
+    private static final class Link {
+        final LinkProfile profile;
+        final Random random;
+        //плохое состояние модели Гилберта-Эллиотта
+        boolean bad = false;
+        //когда связь закончит передавать уже принятые датаграммы (ограничение скорости), System.nanoTime
+        long busyUntil = 0;
+        //время доставки последней датаграммы (датаграммы связи доставляются по порядку, кроме переупорядоченных)
+        long lastDeliveryTime = 0;
+        //датаграммы, которые ждут доставки
+        int queued = 0;
+
+        Link(LinkProfile _profile, Random _random) {
+            profile = _profile;
+            random = _random;
+        }
+    }
+
+    // Датаграмма, которая ждет своего времени доставки
+    private static final class Delivery implements Comparable<Delivery> {
+        final long deliveryTime;
+        final long order;
+        final ByteBuffer datagram;
+        final InetSocketAddress sender;
+        final Link link;
+
+        Delivery(long _deliveryTime, long _order, ByteBuffer _datagram, InetSocketAddress _sender, Link _link) {
+            deliveryTime = _deliveryTime;
+            order = _order;
+            datagram = _datagram;
+            sender = _sender;
+            link = _link;
+        }
+
+        @Override
+        public int compareTo(Delivery other) {
+            int result = Long.compare(deliveryTime - other.deliveryTime, 0);
+            return result != 0 ? result : Long.compare(order, other.order);
+        }
+    }
+
+    private final ChatMetrics metrics;
+    //копии задержанных датаграмм (буфер приема цикла переиспользуется)
+    private final BufferPool bufferPool = new BufferPool();
+    private final PriorityQueue<Delivery> deliveries = new PriorityQueue<>();
+    private long nextOrder = 0;
+
+    private final Map<InetSocketAddress, Link> links = new HashMap<>();
+    private final Map<InetSocketAddress, LinkProfile> profiles = new HashMap<>();
+    private LinkProfile defaultProfile;
+    private long seed = Long.getLong("chattree.linkSeed", 1);
+
+    public LinkEmulator(LinkProfile _defaultProfile, ChatMetrics _metrics) {
+        defaultProfile = _defaultProfile;
+        metrics = _metrics;
+    }
+
+    //свойства связей, для которых не заданы свои
+    public void setDefaultProfile(LinkProfile profile) {
+        defaultProfile = profile;
+        links.clear();
+    }
+
+    public LinkProfile getDefaultProfile() {
+        return defaultProfile;
+    }
+
+    //свойства связи с соседом sender (null - вернуть свойства по умолчанию)
+    public void setProfile(InetSocketAddress sender, LinkProfile profile) {
+        if (profile == null)
+            profiles.remove(sender);
+        else
+            profiles.put(sender, profile);
+        links.remove(sender);
+    }
+
+    //начальное значение генераторов случайных чисел (связи начинают эмуляцию заново)
+    public void setSeed(long _seed) {
+        seed = _seed;
+        links.clear();
+    }
+
+    // Прием датаграммы от соседа: handler получит ее сразу, позже (deliverDue) или не получит совсем
+    void receive(ByteBuffer datagram, InetSocketAddress sender, EventLoop.DatagramHandler handler) {
+        Link link = getLink(sender);
+        LinkProfile profile = link.profile;
+        if (profile.isTransparent() && link.queued == 0) {
+            handler.handle(datagram, sender);
+            return;
+        }
+
+        if (isLost(link)) {
+            metrics.datagramsLostByEmulator.increment();
+            return;
+        }
+
+        long now = System.nanoTime();
+        boolean duplicated = chance(link, profile.getDuplicate());
+        if (duplicated) {
+            metrics.datagramsDuplicatedByEmulator.increment();
+            enqueue(link, datagram.duplicate(), sender, now);
+        }
+        enqueue(link, datagram, sender, now);
+    }
+
+    //доставка датаграмм, время которых пришло
+    void deliverDue(EventLoop.DatagramHandler handler) {
+        long now = System.nanoTime();
+        Delivery delivery;
+        while ((delivery = deliveries.peek()) != null && delivery.deliveryTime - now <= 0) {
+            deliveries.poll();
+            delivery.link.queued--;
+            try {
+                handler.handle(delivery.datagram, delivery.sender);
+            } finally {
+                bufferPool.release(delivery.datagram);
+            }
+        }
+    }
+
+    //через сколько мс доставка следующей датаграммы (Long.MAX_VALUE - доставлять нечего)
+    long nextDeliveryDelay() {
+        Delivery delivery = deliveries.peek();
+        if (delivery == null)
+            return Long.MAX_VALUE;
+        long delay = delivery.deliveryTime - System.nanoTime();
+        return delay <= 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(delay) + 1;
+    }
+
+    private Link getLink(InetSocketAddress sender) {
+        Link link = links.get(sender);
+        if (link == null) {
+            LinkProfile profile = profiles.get(sender);
+            if (profile == null) {
+                String spec = System.getProperty("chattree.link." + sender.getAddress().getHostAddress() + ':'
+                        + sender.getPort());
+                profile = spec != null ? LinkProfile.parse(spec) : defaultProfile;
+            }
+            link = new Link(profile, new Random(seed * 31 + sender.hashCode()));
+            links.put(sender, link);
+        }
+        return link;
+    }
+
+    //потеря датаграммы: состояние модели Гилберта-Эллиотта меняется перед каждой датаграммой
+    private boolean isLost(Link link) {
+        LinkProfile profile = link.profile;
+        if (profile.getGoodToBad() > 0) {
+            if (link.bad ? chance(link, profile.getBadToGood()) : chance(link, profile.getGoodToBad()))
+                link.bad = !link.bad;
+        }
+        return chance(link, link.bad ? profile.getBadLoss() : profile.getLoss());
+    }
+
+    private void enqueue(Link link, ByteBuffer datagram, InetSocketAddress sender, long now) {
+        LinkProfile profile = link.profile;
+        if (link.queued >= profile.getLimit()) {
+            metrics.datagramsLostByEmulator.increment();
+            return;
+        }
+
+        //ограничение скорости: датаграмма передается после предыдущих за length * 8 / rate
+        long sendingTime = now;
+        if (profile.getRate() > 0) {
+            sendingTime = Math.max(now, link.busyUntil);
+            link.busyUntil = sendingTime + datagram.remaining() * 8_000_000L / profile.getRate();
+            sendingTime = link.busyUntil;
+        }
+
+        long deliveryTime;
+        if (profile.getReorder() > 0 && chance(link, profile.getReorder())) {
+            //переупорядоченная датаграмма обгоняет ждущие
+            metrics.datagramsReorderedByEmulator.increment();
+            deliveryTime = sendingTime;
+        } else {
+            deliveryTime = Math.max(sendingTime + delay(link), link.lastDeliveryTime);
+            link.lastDeliveryTime = deliveryTime;
+        }
+
+        ByteBuffer copy = bufferPool.acquire(datagram.remaining());
+        copy.put(datagram);
+        copy.flip();
+        link.queued++;
+        deliveries.add(new Delivery(deliveryTime, nextOrder++, copy, sender, link));
+    }
+
+    //задержка датаграммы в нс
+    private long delay(Link link) {
+        LinkProfile profile = link.profile;
+        double jitter = profile.getJitter();
+        double delay = profile.getDelay();
+        if (jitter > 0) {
+            switch (profile.getDistribution()) {
+                case UNIFORM -> delay += (link.random.nextDouble() * 2 - 1) * jitter;
+                case NORMAL -> delay += link.random.nextGaussian() * jitter;
+                case EXPONENTIAL -> delay += -Math.log(1 - link.random.nextDouble()) * jitter;
+            }
+        }
+        return (long) (Math.max(delay, 0) * 1_000_000);
+    }
+
+    //событие с вероятностью percent %
+    private static boolean chance(Link link, double percent) {
+        return percent > 0 && link.random.nextDouble() * 100 < percent;
+    }
+}
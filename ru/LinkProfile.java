@@ -0,0 +1,146 @@
+package ru;
+
+import java.util.Locale;
+
+// Свойства эмулируемой связи с одним соседом (неизменяемые).
+// Задается строкой вида "delay=20,jitter=5,dist=normal,loss=1,ge=2:25:80,reorder=1,duplicate=0.5,rate=1000,limit=500":
+//  delay     - задержка доставки, мс
+//  jitter    - разброс задержки, мс (uniform: delay +- jitter, normal: отклонение jitter, exponential: delay + exp(jitter))
+//  dist      - распределение задержки: uniform, normal, exponential
+//  loss      - вероятность потери датаграммы, % (в хорошем состоянии модели Гилберта-Эллиотта)
+//  ge        - пачки потерь по модели Гилберта-Эллиотта "p:r:h": p - вероятность перейти в плохое состояние, %,
+//              r - вероятность вернуться в хорошее, %, h - потери в плохом состоянии, % (по умолчанию 100)
+//  reorder   - вероятность доставить датаграмму без задержки, обогнав ждущие, % (нужны delay, jitter или rate)
+//  duplicate - вероятность доставить датаграмму дважды, %
+//  rate      - пропускная способность связи, кбит/с (0 - без ограничения)
+//  limit     - сколько датаграмм может ждать доставки на связи, остальные теряются
+// Число без имени параметра - процент потерь (прежний формат аргумента командной строки).
+public final class LinkProfile {
+    public enum Distribution {
+        UNIFORM,
+        NORMAL,
+        EXPONENTIAL
+    }
+
+    //связь без искажений
+    public static final LinkProfile NONE = new LinkProfile();
+
+    private double delay = 0;
+    private double jitter = 0;
+    private Distribution distribution = Distribution.UNIFORM;
+    private double loss = 0;
+    private double goodToBad = 0;
+    private double badToGood = 100;
+    private double badLoss = 100;
+    private double reorder = 0;
+    private double duplicate = 0;
+    private long rate = 0;
+    private int limit = 1000;
+
+    private LinkProfile() {
+    }
+
+    public static LinkProfile parse(String spec) {
+        LinkProfile profile = new LinkProfile();
+        if (spec == null || spec.isBlank() || spec.equals("none"))
+            return profile;
+
+        try {
+            for (String parameter : spec.split(",")) {
+                int separator = parameter.indexOf('=');
+                if (separator < 0) {
+                    profile.loss = Double.parseDouble(parameter.trim());
+                    continue;
+                }
+
+                String name = parameter.substring(0, separator).trim();
+                String value = parameter.substring(separator + 1).trim();
+                switch (name) {
+                    case "delay" -> profile.delay = Double.parseDouble(value);
+                    case "jitter" -> profile.jitter = Double.parseDouble(value);
+                    case "dist" -> profile.distribution = Distribution.valueOf(value.toUpperCase(Locale.ROOT));
+                    case "loss" -> profile.loss = Double.parseDouble(value);
+                    case "ge" -> {
+                        String[] states = value.split(":");
+                        profile.goodToBad = Double.parseDouble(states[0]);
+                        profile.badToGood = Double.parseDouble(states[1]);
+                        if (states.length > 2)
+                            profile.badLoss = Double.parseDouble(states[2]);
+                    }
+                    case "reorder" -> profile.reorder = Double.parseDouble(value);
+                    case "duplicate" -> profile.duplicate = Double.parseDouble(value);
+                    case "rate" -> profile.rate = Long.parseLong(value);
+                    case "limit" -> profile.limit = Integer.parseInt(value);
+                    default -> throw new IllegalArgumentException("[ERROR] Unknown link parameter: " + name);
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("[ERROR] Incorrect link profile: " + spec);
+        }
+
+        if (profile.delay < 0 || profile.jitter < 0 || profile.rate < 0 || profile.limit <= 0)
+            throw new IllegalArgumentException("[ERROR] Incorrect link profile: " + spec);
+        //без задержки и ограничения скорости датаграммам некого обгонять
+        if (profile.reorder > 0 && profile.delay == 0 && profile.jitter == 0 && profile.rate == 0)
+            throw new IllegalArgumentException("[ERROR] Link reordering needs delay, jitter or rate: " + spec);
+        return profile;
+    }
+
+    //датаграммы проходят связь сразу и без потерь
+    boolean isTransparent() {
+        return delay == 0 && jitter == 0 && loss == 0 && goodToBad == 0 && reorder == 0 && duplicate == 0
+                && rate == 0;
+    }
+
+    double getDelay() {
+        return delay;
+    }
+
+    double getJitter() {
+        return jitter;
+    }
+
+    Distribution getDistribution() {
+        return distribution;
+    }
+
+    double getLoss() {
+        return loss;
+    }
+
+    double getGoodToBad() {
+        return goodToBad;
+    }
+
+    double getBadToGood() {
+        return badToGood;
+    }
+
+    double getBadLoss() {
+        return badLoss;
+    }
+
+    double getReorder() {
+        return reorder;
+    }
+
+    double getDuplicate() {
+        return duplicate;
+    }
+
+    long getRate() {
+        return rate;
+    }
+
+    int getLimit() {
+        return limit;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT,
+                "delay=%s,jitter=%s,dist=%s,loss=%s,ge=%s:%s:%s,reorder=%s,duplicate=%s,rate=%d,limit=%d",
+                delay, jitter, distribution.name().toLowerCase(Locale.ROOT), loss, goodToBad, badToGood, badLoss,
+                reorder, duplicate, rate, limit);
+    }
+}
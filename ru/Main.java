@@ -6,7 +6,7 @@ public class Main {
     //Параметры:
         //имя узла
         //собственный порт
-        //процент потерь
+        //процент потерь или свойства эмулируемых связей (см. LinkProfile), например "delay=20,jitter=5,loss=1"
         //ip-адрес родителя
         //порт родителя
     public static void main(String[] args) throws IOException {
@@ -0,0 +1,198 @@
+package ru;
+
+import ru.chatpacket.ChatFrame;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static ru.chatpacket.ProtocolMagicValues.*;
+
+// Сборка текстовых сообщений из фрагментов.
+// Фрагменты каждого соседа собираются в буферы по ID сообщения. Память под недособранные сообщения одного соседа
+// ограничена. Уже принятые фрагменты не выбрасываются ради новых сообщений: фрагмент нового сообщения, которое
+// не помещается, узел не принимает (canAccept) и не подтверждает, и отправитель повторит его, когда недособранные
+// сообщения соберутся. Сообщение выбрасывается, только если за timeout мс не пришло ни одного его фрагмента
+// (отправитель прекратил доставку).
+// Фрагменты добавляет поток-обработчик отправителя (ReceivePipeline, при chattree.workers = 0 - цикл событий),
+// а таймауты срабатывают в цикле событий, поэтому состояние защищено монитором. Сообщения для консоли
+// под ним только собираются и печатаются после его освобождения.
+class MessageReassembler {
+    // Сообщение, которое собирается из фрагментов
+    private static class PartialMessage {
+        final byte[] text;
+        final boolean[] received;
+        int receivedCount = 0;
+        //когда пришел последний новый фрагмент
+        long lastProgress = TimerWheel.currentTime();
+        TimerWheel.Timeout timeout;
+
+        PartialMessage(int textLength, int fragmentCount) {
+            text = new byte[textLength];
+            received = new boolean[fragmentCount];
+        }
+    }
+
+    private final TimerWheel wheel;
+    //недособранные сообщения соседей (в порядке появления) и сколько памяти они занимают
+    private final Map<Node, Map<Integer, PartialMessage>> partialMessages = new HashMap<>();
+    private final Map<Node, Integer> bufferedBytes = new HashMap<>();
+    //сообщения для консоли, собранные под монитором
+    private final List<String> notices = new ArrayList<>();
+
+    //сколько байт недособранных сообщений храним для одного соседа
+    private volatile int maxBytesPerSender = Integer.getInteger("chattree.reassemblyBytes", 1 << 20);
+    //сколько мс ждем следующий фрагмент недособранного сообщения
+    private volatile int timeout = Integer.getInteger("chattree.reassemblyTimeout", 30000);
+
+    MessageReassembler(TimerWheel _wheel) {
+        wheel = _wheel;
+    }
+
+    void setMaxBytesPerSender(int _maxBytesPerSender) {
+        maxBytesPerSender = _maxBytesPerSender;
+    }
+
+    void setTimeout(int _timeout) {
+        timeout = _timeout;
+    }
+
+    // Есть ли место под фрагмент: false, если фрагмент начинает новое сообщение, которое не помещается в память
+    // соседа. Некорректные фрагменты принимаются (addFragment их выбросит), иначе отправитель повторял бы их
+    synchronized boolean canAccept(Node sender, ChatFrame parser) {
+        int textLength = parser.getInt(FRAGTOTALLENPOS);
+        if (textLength < 0 || textLength > maxBytesPerSender)
+            return true;
+
+        Map<Integer, PartialMessage> senderMessages = partialMessages.get(sender);
+        if (senderMessages != null && senderMessages.containsKey(parser.getInt(FRAGMSGIDPOS)))
+            return true;
+        return bufferedBytes.getOrDefault(sender, 0) + textLength <= maxBytesPerSender;
+    }
+
+    // Добавление фрагмента от соседа sender. Вернет байты текста, если это был последний недостающий фрагмент
+    // сообщения, и null, если сообщение еще не собрано (или фрагмент некорректный)
+    byte[] addFragment(Node sender, ChatFrame parser) {
+        byte[] text;
+        String[] printed;
+        synchronized (this) {
+            text = add(sender, parser);
+            printed = takeNotices();
+        }
+        print(printed);
+        return text;
+    }
+
+    private byte[] add(Node sender, ChatFrame parser) {
+        int messageId = parser.getInt(FRAGMSGIDPOS);
+        int fragmentIndex = parser.getShort(FRAGINDEXPOS) & 0xFFFF;
+        int fragmentCount = parser.getShort(FRAGCOUNTPOS) & 0xFFFF;
+        int textLength = parser.getInt(FRAGTOTALLENPOS);
+        int offset = parser.getInt(FRAGOFFSETPOS);
+        int length = parser.getInt(FRAGLENPOS);
+
+        if (fragmentIndex >= fragmentCount || textLength < 0 || offset < 0 || length < 0
+                || offset > textLength - length) {
+            notices.add("[I/O Thread Message] Invalid fragment from " + sender.getSocketAddress());
+            return null;
+        }
+
+        if (textLength > maxBytesPerSender) {
+            notices.add("[I/O Thread Message] Message from " + sender.getSocketAddress()
+                    + " is too long to be reassembled: " + textLength);
+            return null;
+        }
+
+        Map<Integer, PartialMessage> senderMessages = partialMessages.computeIfAbsent(sender, node -> new HashMap<>());
+        PartialMessage message = senderMessages.get(messageId);
+
+        if (message == null) {
+            //сюда попадает только фрагмент, который не проверили через canAccept
+            if (bufferedBytes.getOrDefault(sender, 0) + textLength > maxBytesPerSender) {
+                if (senderMessages.isEmpty())
+                    partialMessages.remove(sender);
+                notices.add("[I/O Thread Message] Reassembly buffer for " + sender.getSocketAddress()
+                        + " is full, fragment dropped");
+                return null;
+            }
+
+            message = new PartialMessage(textLength, fragmentCount);
+            senderMessages.put(messageId, message);
+            bufferedBytes.merge(sender, textLength, Integer::sum);
+            message.timeout = wheel.schedule(() -> expire(sender, messageId), timeout);
+        } else if (message.text.length != textLength || message.received.length != fragmentCount) {
+            notices.add("[I/O Thread Message] Invalid fragment from " + sender.getSocketAddress());
+            return null;
+        }
+
+        if (message.received[fragmentIndex])
+            return null;
+
+        parser.get(FRAGPOS, message.text, offset, length);
+        message.received[fragmentIndex] = true;
+        message.receivedCount++;
+        message.lastProgress = TimerWheel.currentTime();
+
+        if (message.receivedCount < fragmentCount)
+            return null;
+
+        //сообщение собрано
+        wheel.cancel(message.timeout);
+        remove(sender, messageId);
+        return message.text;
+    }
+
+    // Таймер сообщения: если фрагменты еще приходят, ждем timeout мс от последнего из них
+    private void expire(Node sender, int messageId) {
+        PartialMessage message;
+        synchronized (this) {
+            Map<Integer, PartialMessage> senderMessages = partialMessages.get(sender);
+            message = senderMessages != null ? senderMessages.get(messageId) : null;
+            if (message == null)
+                return;
+
+            long idle = TimerWheel.currentTime() - message.lastProgress;
+            if (idle < timeout) {
+                message.timeout = wheel.schedule(() -> expire(sender, messageId), timeout - idle);
+                return;
+            }
+            remove(sender, messageId);
+        }
+        ConsoleSink.println("[I/O Thread Message] Incomplete message from " + sender.getSocketAddress()
+                + " dropped by timeout");
+    }
+
+    //сообщения, собранные под монитором (null - сообщений нет)
+    private String[] takeNotices() {
+        if (notices.isEmpty())
+            return null;
+        String[] taken = notices.toArray(new String[0]);
+        notices.clear();
+        return taken;
+    }
+
+    private static void print(String[] printed) {
+        if (printed != null) {
+            for (String line : printed)
+                ConsoleSink.println(line);
+        }
+    }
+
+    private PartialMessage remove(Node sender, int messageId) {
+        Map<Integer, PartialMessage> senderMessages = partialMessages.get(sender);
+        if (senderMessages == null)
+            return null;
+
+        PartialMessage message = senderMessages.remove(messageId);
+        if (message == null)
+            return null;
+
+        if (senderMessages.isEmpty()) {
+            partialMessages.remove(sender);
+            bufferedBytes.remove(sender);
+        } else {
+            bufferedBytes.merge(sender, -message.text.length, Integer::sum);
+        }
+        return message;
+    }
+}
@@ -0,0 +1,57 @@
+package ru;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+// Неблокирующая очередь "много производителей - один потребитель" (связный список Вьюкова).
+// Производитель добавляет элемент одной атомарной заменой хвоста, без блокировок и повторов,
+// потребитель забирает элементы пачкой, не трогая общие переменные, кроме ссылок next.
+// Забирать элементы (drain, isEmpty) может только один поток - владелец очереди.
+class MpscQueue<E> {
+    private static final class QueueNode<E> {
+        E value;
+        volatile QueueNode<E> next;
+
+        QueueNode(E _value) {
+            value = _value;
+        }
+    }
+
+    //последний добавленный узел (общий для производителей)
+    private final AtomicReference<QueueNode<E>> tail;
+    //узел перед первым элементом (только потребитель)
+    private QueueNode<E> head;
+
+    MpscQueue() {
+        head = new QueueNode<>(null);
+        tail = new AtomicReference<>(head);
+    }
+
+    //добавление элемента (из любого потока)
+    void offer(E value) {
+        QueueNode<E> node = new QueueNode<>(value);
+        QueueNode<E> previous = tail.getAndSet(node);
+        //до этой записи потребитель считает, что очередь заканчивается на previous
+        previous.next = node;
+    }
+
+    // Передача потребителю не больше limit элементов в порядке добавления (только поток-владелец).
+    // Вернет количество переданных элементов
+    int drain(Consumer<? super E> consumer, int limit) {
+        int count = 0;
+        QueueNode<E> next;
+        while (count < limit && (next = head.next) != null) {
+            E value = next.value;
+            next.value = null;
+            head = next;
+            count++;
+            consumer.accept(value);
+        }
+        return count;
+    }
+
+    //true, если потребителю пока нечего забирать (только поток-владелец)
+    boolean isEmpty() {
+        return head.next == null;
+    }
+}
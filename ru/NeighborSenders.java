@@ -0,0 +1,166 @@
+package ru;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Отправка датаграмм отдельным отправителем для каждого соседа.
+// У каждого соседа свой почтовый ящик - ограниченное кольцо (один производитель - цикл событий, один потребитель -
+// отправитель соседа): цикл копирует датаграмму в буфер из своего пула и кладет его в кольцо, а отправитель соседа
+// забирает датаграммы по порядку и передает их сокету. Отправленные буферы цикл возвращает в пул, когда в следующий
+// раз отправляет датаграмму этому соседу. Если буфер сокета заполнен, ждет только этот отправитель, остальные
+// соседи продолжают получать свои датаграммы. Если заполнен ящик (сосед не успевает забирать датаграммы), новая
+// датаграмма выбрасывается и учитывается в счетчике: доставку восстановит повторная отправка.
+// Повторные отправки, их таймеры, окна отправки и отчеты о доставке остаются в цикле событий: отправитель соседа
+// только передает сокету уже готовые датаграммы.
+// Отправитель запускается, только когда в пустой ящик пришла датаграмма, и завершается, когда ящик опустел,
+// поэтому простаивающие соседи потоков не занимают. Потоки виртуальные, если JVM их поддерживает (Java 21+),
+// иначе - обычные потоки из пула; -Dchattree.neighborThreads=platform включает обычные потоки и на Java 21+.
+// Размер ящика задается через -Dchattree.neighborMailbox (датаграмм).
+class NeighborSenders {
+    // Почтовый ящик соседа
+    private class Mailbox implements Runnable {
+        final SocketAddress target;
+        final ByteBuffer[] datagrams;
+        final int mask;
+        //сколько датаграмм положил цикл и сколько отправил отправитель соседа
+        final AtomicLong published = new AtomicLong();
+        final AtomicLong sent = new AtomicLong();
+        //номер следующей датаграммы и сколько отправленных буферов уже вернулось в пул (только цикл)
+        long tail = 0;
+        long reclaimed = 0;
+        //отправитель запущен (или будет запущен) и сам заберет новые датаграммы
+        final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        Mailbox(SocketAddress _target) {
+            target = _target;
+            int size = Integer.highestOneBit(Math.max(mailboxSize, 2) - 1) << 1;
+            datagrams = new ByteBuffer[size];
+            mask = size - 1;
+        }
+
+        //место для еще одной датаграммы (в потоке цикла): отправленные буферы возвращаются в пул
+        boolean reserve() {
+            long done = sent.get();
+            while (reclaimed < done) {
+                int index = (int) reclaimed & mask;
+                bufferPool.release(datagrams[index]);
+                datagrams[index] = null;
+                reclaimed++;
+            }
+            return tail - reclaimed < datagrams.length;
+        }
+
+        void post(ByteBuffer datagram) {
+            datagrams[(int) tail & mask] = datagram;
+            published.set(++tail);
+            if (scheduled.compareAndSet(false, true))
+                executor.execute(this);
+        }
+
+        @Override
+        public void run() {
+            long head = sent.get();
+            for (;;) {
+                while (head < published.get()) {
+                    if (!transmit(datagrams[(int) head & mask], target))
+                        return;
+                    //буфер вернется в пул, когда цикл увидит новое значение
+                    sent.set(++head);
+                }
+
+                //датаграмма могла прийти между проверкой ящика и снятием флага
+                scheduled.set(false);
+                if (head == published.get() || !scheduled.compareAndSet(false, true))
+                    return;
+            }
+        }
+    }
+
+    //пауза, если буфер сокета заполнен
+    private static final long BACKOFF_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    private final DatagramChannel channel;
+    //пул буферов цикла событий (только поток цикла)
+    private final BufferPool bufferPool;
+    private final ChatMetrics metrics;
+    private final int mailboxSize = Integer.getInteger("chattree.neighborMailbox", 256);
+    private final ExecutorService executor;
+    private final boolean virtual;
+    //ящики соседей (только поток цикла событий)
+    private final Map<SocketAddress, Mailbox> mailboxes = new HashMap<>();
+
+    NeighborSenders(DatagramChannel _channel, BufferPool _bufferPool, ChatMetrics _metrics) {
+        channel = _channel;
+        bufferPool = _bufferPool;
+        metrics = _metrics;
+
+        ExecutorService virtualExecutor = "platform".equals(System.getProperty("chattree.neighborThreads"))
+                ? null : newVirtualThreadExecutor();
+        virtual = virtualExecutor != null;
+        executor = virtual ? virtualExecutor : Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "neighbor-sender");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    boolean isVirtual() {
+        return virtual;
+    }
+
+    // Отправка датаграммы соседу (в потоке цикла). Датаграмма копируется в буфер из пула,
+    // позиция буфера сдвигается на его конец. false - ящик заполнен и датаграмма выброшена
+    boolean send(ByteBuffer datagram, SocketAddress target) {
+        Mailbox mailbox = mailboxes.computeIfAbsent(target, Mailbox::new);
+        if (!mailbox.reserve()) {
+            metrics.mailboxOverflows.increment();
+            datagram.position(datagram.limit());
+            return false;
+        }
+
+        ByteBuffer copy = bufferPool.acquire(datagram.remaining());
+        copy.put(datagram);
+        copy.flip();
+        mailbox.post(copy);
+        return true;
+    }
+
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    //true - датаграмма отправлена (или отправить ее невозможно), false - поток прерван
+    private boolean transmit(ByteBuffer datagram, SocketAddress target) {
+        try {
+            while (channel.send(datagram, target) == 0) {
+                LockSupport.parkNanos(BACKOFF_NANOS);
+                if (Thread.currentThread().isInterrupted())
+                    return false;
+            }
+        } catch (IOException e) {
+            ConsoleSink.println("I/O Error! Can't sending to client " + target);
+        }
+        return true;
+    }
+
+    //исполнитель "поток на задачу" с виртуальными потоками, null - если JVM их не поддерживает
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -1,6 +1,10 @@
 package ru;
 
+import ru.chatpacket.DeliveryDataTuple;
+
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class Node
 {
@@ -10,25 +14,62 @@ public class Node
     private InetAddress ipAddress;
     //порт узла
     private int port;
+    //адрес узла для отправки датаграмм (создается при первом обращении)
+    private InetSocketAddress socketAddress = null;
+
+    //сколько последних номеров сообщений помнит окно приема (задается через -Dchattree.receiveWindow)
+    private static volatile int receiveWindowSize = Integer.getInteger("chattree.receiveWindow", 1024);
+    //окно приема сообщений от узла (создается при рукопожатии CHILD/PARENT). Окно и счетчики отчетов ниже
+    //меняет только поток, который принимает сообщения узла: цикл событий или поток-обработчик узла
+    private ReceiveWindow receiveWindow = null;
+    //узел умеет принимать сжатые сообщения (сообщил об этом в рукопожатии CHILD/PARENT)
+    private volatile boolean compressionSupported = false;
+    //сколько принятых от узла сообщений еще не подтверждено отчетом и когда отправить отложенный отчет
+    //(reportDeadline действует, пока узел стоит в очереди отложенных отчетов)
+    private int unreportedMessages = 0;
+    private long reportDeadline = 0;
+    private boolean reportScheduled = false;
+
+    //sequence number следующего сообщения этому узлу (начинается со случайного значения,
+    //выдается при первой отправке сообщения, только поток цикла)
+    private int nextSequenceNumber;
+    //номер, до которого узел подтвердил все наши сообщения
+    private int acknowledgedUpTo;
+    //отправленные узлу сообщения, которые он еще не подтвердил (по sequence number, только поток цикла)
+    private final SequenceTable unacknowledged = new SequenceTable();
+    //размер таблицы неподтвержденных, который цикл публикует после каждого изменения (для статистики из других потоков)
+    private volatile int inFlight = 0;
+    //окно отправки: сколько сообщений узлу может ждать подтверждения, и очередь тех, кто ждет места в окне
+    private final SendWindow sendWindow = new SendWindow();
 
-    //макисмальное количество сообщений
-    private final int MAXIDCOUNT = 512;
-    //список всех полученных сообщений
-    private int[] idList = new int[MAXIDCOUNT];
-    //текущая позиция в списке
-    private int currentPos = 0;
+    //начальный таймаут повторной отправки (пока нет ни одного замера RTT), а также его границы, в миллисекундах
+    public static final long INITIAL_RTO = 1500;
+    public static final long MIN_RTO = 30;
+    public static final long MAX_RTO = 15000;
+    //гранулярность таймеров повторной отправки
+    private static final long CLOCK_GRANULARITY = 10;
+
+    //сглаженное время приема-передачи (SRTT) и его вариация (RTTVAR) в миллисекундах, -1 - замеров еще не было
+    //обновляется только потоком, который принимает отчеты о доставке
+    private volatile double smoothedRtt = -1;
+    private volatile double rttVariance = 0;
+    //таймаут повторной отправки (RTO) без учета экспоненциальной задержки
+    private volatile long retransmissionTimeout = INITIAL_RTO;
 
     //создание узла с именем
     public Node(String _nodeName, InetAddress _ipAddress, int _port) {
+        this(_ipAddress, _port);
         nodeName = _nodeName;
-        ipAddress = _ipAddress;
-        port = _port;
     }
 
     //создание узла без имени
     public Node(InetAddress _ipAddress, int _port) {
         ipAddress = _ipAddress;
         port = _port;
+
+        int initialSequenceNumber = ThreadLocalRandom.current().nextInt();
+        nextSequenceNumber = initialSequenceNumber;
+        acknowledgedUpTo = initialSequenceNumber - 1;
     }
 
     //присвоение имени узлу
@@ -39,6 +80,7 @@ public class Node
     //привоение ip-шника
     public void setIPAddress(InetAddress _ipAddress) {
         ipAddress = _ipAddress;
+        socketAddress = null;
     }
 
     //получение имени
@@ -56,22 +98,211 @@ public class Node
         return port;
     }
 
-    //добавить в список ID полученного сообщения
-    public void addMessageID(int id) {
-        int pos = currentPos % MAXIDCOUNT;
-        idList[pos] = id;
-        currentPos++;
+    //получение адреса для отправки датаграмм
+    public InetSocketAddress getSocketAddress() {
+        InetSocketAddress address = socketAddress;
+        if (address == null) {
+            address = new InetSocketAddress(ipAddress, port);
+            socketAddress = address;
+        }
+
+        return address;
     }
 
-    //проверка на существование ID в списке
-    //вернет true, если ID есть в списке, иначе false
-    public boolean isExist(int id) {
-        for (int i = 0; i < idList.length; i++) {
-            if (idList[i] == id)
-                return true;
+    // Учет нового замера времени приема-передачи (RFC 6298).
+    // По правилу Карна замеры берутся только для сообщений, которые отправлялись один раз
+    public void addRttSample(double rtt) {
+        if (smoothedRtt < 0) {
+            smoothedRtt = rtt;
+            rttVariance = rtt / 2;
+        } else {
+            rttVariance = 0.75 * rttVariance + 0.25 * Math.abs(smoothedRtt - rtt);
+            smoothedRtt = 0.875 * smoothedRtt + 0.125 * rtt;
         }
 
-        return false;
+        long rto = (long) Math.ceil(smoothedRtt + Math.max(CLOCK_GRANULARITY, 4 * rttVariance));
+        retransmissionTimeout = Math.min(Math.max(rto, MIN_RTO), MAX_RTO);
+    }
+
+    //получение сглаженного RTT в миллисекундах (-1, если замеров еще не было)
+    public double getSmoothedRtt() {
+        return smoothedRtt;
+    }
+
+    //получение вариации RTT в миллисекундах
+    public double getRttVariance() {
+        return rttVariance;
+    }
+
+    //получение текущего таймаута повторной отправки
+    public long getRetransmissionTimeout() {
+        return retransmissionTimeout;
+    }
+
+    // Таймаут до следующей повторной отправки сообщения, которое уже было отправлено sendCount раз:
+    // после каждой неудачной попытки таймаут удваивается (но не больше MAX_RTO)
+    public long getRetransmissionTimeout(int sendCount) {
+        long rto = retransmissionTimeout;
+
+        for (int i = 1; i < sendCount && rto < MAX_RTO; i++)
+            rto <<= 1;
+
+        return Math.min(rto, MAX_RTO);
+    }
+
+    //установка размера окна приема для новых узлов
+    public static void setReceiveWindowSize(int size) {
+        if (size <= 0)
+            throw new IllegalArgumentException("[ERROR] Receive window size must be positive");
+        receiveWindowSize = size;
+    }
+
+    public static int getReceiveWindowSize() {
+        return receiveWindowSize;
+    }
+
+    //получение sequence number для сообщения, которое отправляется этому узлу впервые
+    public int nextSequenceNumber() {
+        return nextSequenceNumber++;
+    }
+
+    //номер, до которого узел подтвердил все наши сообщения
+    public int getAcknowledgedUpTo() {
+        return acknowledgedUpTo;
+    }
+
+    // Кумулятивное подтверждение от узла. Вернет false, если оно ничего не добавляет
+    // или подтверждает сообщения, которые мы еще не отправляли
+    public boolean advanceAcknowledgedUpTo(int cumulativeAck) {
+        if (cumulativeAck - acknowledgedUpTo <= 0 || cumulativeAck - nextSequenceNumber >= 0)
+            return false;
+
+        acknowledgedUpTo = cumulativeAck;
+        return true;
+    }
+
+    // Пропуск на связи: узел не получил сообщение acknowledgedUpTo + 1, а мы его больше не ждем (доставку
+    // прекратили). Номера выдаются при первой отправке, поэтому отправленный номер, которого нет среди
+    // неподтвержденных, либо подтвержден, либо брошен, а подтвердить номер за своей границей узел не мог
+    public boolean hasAbandonedGap() {
+        int sequenceNumber = acknowledgedUpTo + 1;
+        return sequenceNumber - nextSequenceNumber < 0 && unacknowledged.get(sequenceNumber) == null;
+    }
+
+    //номер, до которого все наши сообщения узлу подтверждены или брошены (граница для сообщения SKIP)
+    public int getResolvedUpTo() {
+        int sequenceNumber = acknowledgedUpTo + 1;
+        while (sequenceNumber - nextSequenceNumber < 0 && unacknowledged.get(sequenceNumber) == null)
+            sequenceNumber++;
+        return sequenceNumber - 1;
+    }
+
+    //добавление сообщения, подтверждения которого мы ждем от узла
+    public void addUnacknowledged(DeliveryDataTuple recipient) {
+        unacknowledged.put(recipient);
+        inFlight = unacknowledged.size();
+    }
+
+    //сколько отправленных узлу сообщений ждут подтверждения (можно читать из любого потока)
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    public SendWindow getSendWindow() {
+        return sendWindow;
+    }
+
+    //сообщение с номером sequenceNumber, подтверждения которого мы ждем (или null)
+    public DeliveryDataTuple getUnacknowledged(int sequenceNumber) {
+        return unacknowledged.get(sequenceNumber);
+    }
+
+    //удаление сообщения из ожидающих подтверждения, вернет удаленное сообщение (или null)
+    public DeliveryDataTuple removeUnacknowledged(int sequenceNumber) {
+        DeliveryDataTuple recipient = unacknowledged.remove(sequenceNumber);
+        if (recipient != null)
+            inFlight = unacknowledged.size();
+        return recipient;
+    }
+
+    public boolean removeUnacknowledged(DeliveryDataTuple recipient) {
+        boolean removed = unacknowledged.remove(recipient);
+        if (removed)
+            inFlight = unacknowledged.size();
+        return removed;
+    }
+
+    // Проверка сообщения по окну приема: вернет true, если сообщение новое, и false, если это дубликат.
+    // Окно открывается рукопожатием CHILD/PARENT, до него остальные сообщения от узла не принимаются.
+    // Рукопожатие с номером далеко за пределами окна означает, что узел перезапустился, и окно начинается заново
+    public boolean acceptSequenceNumber(int sequenceNumber, boolean handshake) {
+        if (receiveWindow == null) {
+            if (!handshake)
+                return false;
+            receiveWindow = new ReceiveWindow(receiveWindowSize, sequenceNumber);
+        } else if (handshake && !receiveWindow.inRange(sequenceNumber)) {
+            receiveWindow.reset(sequenceNumber);
+        }
+
+        return receiveWindow.accept(sequenceNumber);
+    }
+
+    //отправитель больше не ждет подтверждения сообщений до sequenceNumber включительно (сообщение SKIP),
+    //вернет false, если окно приема не сдвинулось
+    public boolean skipReceived(int sequenceNumber) {
+        return receiveWindow != null && receiveWindow.skipTo(sequenceNumber);
+    }
+
+    //true, если сообщение с этим номером будет принято как новое (окно приема не меняется)
+    public boolean isNewSequenceNumber(int sequenceNumber) {
+        return receiveWindow != null && receiveWindow.isNew(sequenceNumber);
+    }
+
+    //окно приема сообщений от узла (null, если рукопожатия еще не было)
+    public ReceiveWindow getReceiveWindow() {
+        return receiveWindow;
+    }
+
+    public boolean isCompressionSupported() {
+        return compressionSupported;
+    }
+
+    public void setCompressionSupported(boolean _compressionSupported) {
+        compressionSupported = _compressionSupported;
+    }
+
+    //еще одно принятое сообщение ждет отчета, вернет количество таких сообщений
+    int addUnreportedMessage() {
+        return ++unreportedMessages;
+    }
+
+    int getUnreportedMessages() {
+        return unreportedMessages;
+    }
+
+    //отчет отправлен: сбрасываем счетчик, вернет количество подтвержденных им сообщений
+    int resetUnreportedMessages() {
+        int count = unreportedMessages;
+        unreportedMessages = 0;
+        return count;
+    }
+
+    boolean isReportScheduled() {
+        return reportScheduled;
+    }
+
+    long getReportDeadline() {
+        return reportDeadline;
+    }
+
+    //узел встал в очередь отложенных отчетов (deadline - время отправки по часам TimerWheel) или покинул ее
+    void scheduleReport(long deadline) {
+        reportDeadline = deadline;
+        reportScheduled = true;
+    }
+
+    void unscheduleReport() {
+        reportScheduled = false;
     }
 
     @Override
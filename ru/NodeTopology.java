@@ -1,62 +1,142 @@
 package ru;
 
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
-// Топология текущего узла (сведения о его родителе и детях)
+// Топология текущего узла (сведения о его родителе и детях).
+// Топология хранится неизменяемым снимком, который заменяется целиком при каждом изменении (copy-on-write):
+// читатели берут текущий снимок без блокировок и аллокаций, а поиск соседа по адресу - O(1) по индексу снимка.
+// Изменения топологии редкие, поэтому изменяющие методы синхронизированы между собой.
 public class NodeTopology
 {
-    //родителький узел
-    private Node parent = null;
-    //коллекция узлов-потомков
-    private Set<Node> childrens = new HashSet<>();
+    // Неизменяемый снимок топологии
+    public static final class Snapshot {
+        //родителький узел
+        private final Node parent;
+        //узел, к которому мы подключаемся как потомок, но который еще не ответил нам PARENT сообщением
+        private final Node pendingParent;
+        //коллекция узлов-потомков
+        private final Set<Node> childrens;
+        //потомки + родитель
+        private final Set<Node> topology;
+        //все известные узлы (потомки, родитель и узел, к которому мы подключаемся) по адресу
+        private final Map<InetSocketAddress, Node> nodesByAddress;
+
+        private Snapshot(Node _parent, Node _pendingParent, Set<Node> _childrens) {
+            parent = _parent;
+            pendingParent = _pendingParent;
+            childrens = Collections.unmodifiableSet(_childrens);
+
+            Set<Node> allNodes = new HashSet<>(_childrens);
+            if (parent != null)
+                allNodes.add(parent);
+            topology = Collections.unmodifiableSet(allNodes);
+
+            Map<InetSocketAddress, Node> index = new HashMap<>();
+            if (pendingParent != null)
+                index.put(pendingParent.getSocketAddress(), pendingParent);
+            if (parent != null)
+                index.put(parent.getSocketAddress(), parent);
+            for (Node child : _childrens)
+                index.put(child.getSocketAddress(), child);
+            nodesByAddress = index;
+        }
+
+        public Node getParent() {
+            return parent;
+        }
+
+        public Set<Node> getChildrens() {
+            return childrens;
+        }
+
+        public Set<Node> getTopology() {
+            return topology;
+        }
+
+        public Node getNodeByAddress(InetSocketAddress address) {
+            return nodesByAddress.get(address);
+        }
+    }
+
+    private volatile Snapshot snapshot = new Snapshot(null, null, Collections.emptySet());
 
     public NodeTopology() {}
 
+    //текущий снимок топологии (для согласованного чтения нескольких полей)
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
     //добавление потомка в топологию
-    void addChildrenNode(Node child) {
-        childrens.add(child);
+    synchronized void addChildrenNode(Node child) {
+        Snapshot current = snapshot;
+        Set<Node> childrens = new HashSet<>(current.childrens);
+        if (childrens.add(child))
+            snapshot = new Snapshot(current.parent, current.pendingParent, childrens);
+    }
+
+    //удаление потомка из топологии, true - если такой потомок был
+    synchronized boolean removeChildrenNode(Node child) {
+        Snapshot current = snapshot;
+        Set<Node> childrens = new HashSet<>(current.childrens);
+        if (!childrens.remove(child))
+            return false;
+
+        snapshot = new Snapshot(current.parent, current.pendingParent, childrens);
+        return true;
     }
 
     //получение узла родителя
     Node getParent() {
-        return parent;
+        return snapshot.parent;
     }
 
     //добавление узла родителя
-    void setParent(Node _parent) {
-        parent = _parent;
+    synchronized void setParent(Node _parent) {
+        Snapshot current = snapshot;
+        Node pendingParent = current.pendingParent;
+        if (_parent != null && _parent.equals(pendingParent))
+            pendingParent = null;
+
+        snapshot = new Snapshot(_parent, pendingParent, current.childrens);
+    }
+
+    //добавление узла, к которому мы подключаемся как потомок
+    synchronized void setPendingParent(Node _pendingParent) {
+        Snapshot current = snapshot;
+        snapshot = new Snapshot(current.parent, _pendingParent, current.childrens);
     }
 
-    //получение коллекции потомков
+    //получение коллекции потомков (неизменяемой)
     public Set<Node> getChildrens() {
-        return childrens;
+        return snapshot.childrens;
     }
 
-    //получение коллекции потомков + родителя
+    //получение коллекции потомков + родителя (неизменяемой)
     public Set<Node> getTopology() {
-        Set<Node> topology = new HashSet<>();
-        topology.addAll(childrens);
-
-        if (parent != null)
-            topology.add(parent);
+        return snapshot.topology;
+    }
 
-        return topology;
+    //получение узла по его адресу (среди детей, родителя и узла, к которому мы подключаемся), null - если узел неизвестен
+    public Node getNodeByAddress(InetSocketAddress _address) {
+        return snapshot.getNodeByAddress(_address);
     }
 
     //получение имени узла по его адресу
     public String getNameByAddress(InetAddress _address, int _port) {
-        //прошлись до детям, если совпадает ip-шник и порт, то возвращаем имя узла
-        for (Node currentNode : childrens) {
-            if (currentNode.getAddress().equals(_address) && currentNode.getPort() == _port)
-                return currentNode.getNodeName();
-        }
+        Snapshot current = snapshot;
+        Node node = current.getNodeByAddress(new InetSocketAddress(_address, _port));
 
-        //если это родитель
-        if (parent != null && parent.getAddress().equals(_address) && parent.getPort() == _port)
-            return parent.getNodeName();
+        //только дети и родитель
+        if (node == null || (node != current.parent && !current.childrens.contains(node)))
+            return null;
 
-        return null;
+        return node.getNodeName();
     }
 }
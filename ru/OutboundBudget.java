@@ -0,0 +1,111 @@
+package ru;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// Ограничение памяти под исходящие сообщения, которые ждут подтверждения.
+// Размер неподтвержденных сообщений считает таблица PendingDeliveryTable. Если новое текстовое сообщение
+// не помещается в бюджет, действует выбранная политика:
+//  BLOCK - поток, который отправляет сообщение, ждет, пока подтверждения освободят место
+//          (поток цикла событий и потоки-обработчики принятых сообщений ждать не могут, поэтому их сообщения
+//          в этом случае отклоняются);
+//  DROP_OLDEST_TEXT - сообщение принимается, а цикл событий выбрасывает самые старые текстовые сообщения,
+//          пока размер не вернется в бюджет;
+//  REJECT - новое сообщение отклоняется.
+// Служебные INFO сообщения (топология) бюджетом не ограничиваются и никогда не выбрасываются.
+public class OutboundBudget {
+    public enum Policy {
+        BLOCK,
+        DROP_OLDEST_TEXT,
+        REJECT
+    }
+
+    //как часто ждущий поток проверяет, освободилось ли место
+    private static final long BLOCK_CHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final PendingDeliveryTable waitingReport;
+    private final ChatMetrics metrics;
+
+    //сколько байт неподтвержденных сообщений можно хранить (0 - без ограничения)
+    private volatile long limit = Long.getLong("chattree.outboundBudget", 64L << 20);
+    private volatile Policy policy = parsePolicy(System.getProperty("chattree.overflowPolicy"));
+
+    OutboundBudget(PendingDeliveryTable _waitingReport, ChatMetrics _metrics) {
+        waitingReport = _waitingReport;
+        metrics = _metrics;
+    }
+
+    void configure(long _limit, Policy _policy) {
+        if (_limit < 0)
+            throw new IllegalArgumentException("[ERROR] Outbound budget must not be negative: " + _limit);
+        limit = _limit;
+        policy = _policy;
+    }
+
+    long getLimit() {
+        return limit;
+    }
+
+    Policy getPolicy() {
+        return policy;
+    }
+
+    //размер неподтвержденных сообщений превышает бюджет
+    boolean isExceeded() {
+        long budget = limit;
+        return budget > 0 && waitingReport.getPendingBytes() > budget;
+    }
+
+    // Можно ли поставить в очередь текстовое сообщение размером size байт.
+    // При политике BLOCK ждет места (кроме цикла событий и потоков-обработчиков, mayBlock = false),
+    // вернет false, если сообщение отклонено
+    boolean admit(long size, boolean mayBlock) {
+        if (fits(size))
+            return true;
+
+        Policy currentPolicy = policy;
+        if (currentPolicy == Policy.DROP_OLDEST_TEXT)
+            return true;
+
+        if (currentPolicy == Policy.REJECT || !mayBlock) {
+            metrics.messagesRejected.increment();
+            return false;
+        }
+
+        metrics.producerBlocks.increment();
+        long start = System.nanoTime();
+        try {
+            while (!fits(size)) {
+                LockSupport.parkNanos(BLOCK_CHECK_NANOS);
+                if (Thread.currentThread().isInterrupted()) {
+                    metrics.messagesRejected.increment();
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            metrics.producerBlockedNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    //политика из -Dchattree.overflowPolicy: неизвестное значение не мешает запуску, вместо него BLOCK
+    private static Policy parsePolicy(String value) {
+        if (value == null)
+            return Policy.BLOCK;
+
+        try {
+            return Policy.valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            ConsoleSink.println("[ERROR] Unknown chattree.overflowPolicy: " + value + ", " + Policy.BLOCK + " is used");
+            return Policy.BLOCK;
+        }
+    }
+
+    //сообщение помещается в бюджет (сообщение больше всего бюджета помещается в пустую таблицу)
+    private boolean fits(long size) {
+        long budget = limit;
+        long pendingBytes = waitingReport.getPendingBytes();
+        return budget <= 0 || pendingBytes == 0 || pendingBytes + size <= budget;
+    }
+}
@@ -0,0 +1,105 @@
+package ru;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Сжатие текста сообщений (Deflate с максимальной скоростью и общим словарем).
+// Словарь задан заранее и одинаков у всех узлов: в нем фрагменты, которые часто встречаются в логах и JSON,
+// поэтому даже короткие сообщения сжимаются лучше, чем без словаря. Номер словаря узлы сообщают в рукопожатии,
+// и сжатие включается, только если номера совпали (иначе каждый кадр не распаковался бы).
+// Сжатые данные: длина исходного текста (4 байта) | поток Deflate.
+// Deflater и Inflater не потокобезопасны, поэтому у каждого потока свои.
+public class PayloadCodec {
+    private static final byte[] DICTIONARY = (
+            "\": \"\", \"\": [], {}, null, true, false, \"id\": \"name\": \"type\": \"value\": \"message\": "
+            + "\"timestamp\": \"status\": \"error\": \"data\": \"level\": "
+            + " INFO  WARN  ERROR  DEBUG  TRACE Exception at java. org. com. Caused by: .java:"
+            + " http:// https:// localhost 127.0.0.1 GET POST 200 OK 404 Not Found 500"
+            + " the and for that with this from have are was not you but "
+            + "2026-01-01T00:00:00.000Z ")
+            .getBytes(StandardCharsets.UTF_8);
+    //номер словаря (1..15), при любом изменении DICTIONARY его нужно увеличить
+    public static final int DICTIONARY_ID = 1;
+
+    //максимальный размер исходного текста, который согласны распаковать
+    private static final int MAX_TEXT_LENGTH = 1 << 24;
+
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+
+    private final ChatMetrics metrics;
+
+    public PayloadCodec(ChatMetrics _metrics) {
+        metrics = _metrics;
+    }
+
+    // Сжатие текста. Вернет null, если сжатие не дает выигрыша
+    public byte[] compress(byte[] text) {
+        if (text.length <= 4)
+            return null;
+
+        long start = System.nanoTime();
+
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(text);
+        deflater.finish();
+
+        //сжатые данные должны быть меньше исходных, иначе смысла в сжатии нет
+        byte[] compressed = new byte[text.length];
+        compressed[0] = (byte) (text.length >>> 24);
+        compressed[1] = (byte) (text.length >>> 16);
+        compressed[2] = (byte) (text.length >>> 8);
+        compressed[3] = (byte) text.length;
+        int length = 4;
+        while (!deflater.finished() && length < compressed.length)
+            length += deflater.deflate(compressed, length, compressed.length - length);
+
+        metrics.compressionNanos.add(System.nanoTime() - start);
+        if (!deflater.finished()) {
+            metrics.incompressiblePayloads.increment();
+            return null;
+        }
+
+        metrics.compressedPayloads.increment();
+        metrics.bytesBeforeCompression.add(text.length);
+        metrics.bytesAfterCompression.add(length);
+        return Arrays.copyOf(compressed, length);
+    }
+
+    // Распаковка текста, сжатого compress
+    public byte[] decompress(byte[] compressed, int offset, int length) throws DataFormatException {
+        long start = System.nanoTime();
+        if (length < 4)
+            throw new DataFormatException("Compressed payload is too short");
+
+        int textLength = ((compressed[offset] & 0xFF) << 24) | ((compressed[offset + 1] & 0xFF) << 16)
+                | ((compressed[offset + 2] & 0xFF) << 8) | (compressed[offset + 3] & 0xFF);
+        if (textLength < 0 || textLength > MAX_TEXT_LENGTH)
+            throw new DataFormatException("Invalid text length: " + textLength);
+
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(compressed, offset + 4, length - 4);
+
+        byte[] text = new byte[textLength];
+        int textOffset = 0;
+        while (textOffset < textLength) {
+            int inflated = inflater.inflate(text, textOffset, textLength - textOffset);
+            if (inflated == 0) {
+                if (inflater.needsDictionary())
+                    inflater.setDictionary(DICTIONARY);
+                else if (inflater.finished() || inflater.needsInput())
+                    throw new DataFormatException("Compressed payload is truncated");
+            }
+            textOffset += inflated;
+        }
+
+        metrics.decompressionNanos.add(System.nanoTime() - start);
+        return text;
+    }
+}
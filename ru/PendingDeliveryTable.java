@@ -0,0 +1,153 @@
+package ru;
+
+import ru.chatpacket.ChatPacket;
+import ru.chatpacket.DeliveryDataTuple;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Таблица сообщений, которые были отправлены, но статус их доставки еще не подтвержден.
+// Получатели, от которых ждем подтверждения, хранятся у узлов-соседей по sequence number связи с ними,
+// поэтому подтверждение обрабатывается за O(1), а порядок повторной отправки задает RetransmissionScheduler.
+// Добавить сообщение в таблицу и проверить, есть ли оно в ней, можно из любого потока, остальные операции
+// (регистрация получателей у соседей, подтверждение, отказ от доставки) выполняет только поток цикла событий.
+// Дождаться, пока сообщение покинет таблицу, можно через его future, без мониторов и wait/notifyAll.
+// Таблица считает, сколько памяти занимают неподтвержденные сообщения (для бюджета OutboundBudget).
+public class PendingDeliveryTable {
+    // Слушатель, которого таблица уведомляет, когда сообщение покидает ее (доставлено или доставка прекращена)
+    public interface ReleaseListener {
+        void released(ChatPacket packet);
+    }
+
+    // Неподтвержденное сообщение: future, которая завершается, когда сообщение покидает таблицу,
+    // и сколько памяти сообщение занимает
+    private static class PendingMessage {
+        final CompletableFuture<Void> release = new CompletableFuture<>();
+        final long size;
+
+        PendingMessage(long _size) {
+            size = _size;
+        }
+    }
+
+    //примерный размер служебных данных о доставке одному получателю
+    private static final int RECIPIENT_OVERHEAD = 64;
+
+    private final Map<ChatPacket, PendingMessage> pending = new ConcurrentHashMap<>();
+    //сколько байт занимают неподтвержденные сообщения
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private volatile ReleaseListener releaseListener = null;
+
+    public void setReleaseListener(ReleaseListener listener) {
+        releaseListener = listener;
+    }
+
+    //добавление сообщения в таблицу, false - если ждать нечего (получателей нет или сообщение уже в таблице)
+    public boolean add(ChatPacket packet) {
+        if (packet.isDeliver())
+            return false;
+
+        PendingMessage message = new PendingMessage(sizeOf(packet));
+        if (pending.putIfAbsent(packet, message) != null)
+            return false;
+
+        pendingBytes.addAndGet(message.size);
+        return true;
+    }
+
+    // Память, которую займет сообщение в таблице: датаграмма хранится в буфере из пула, поэтому считается
+    // емкость этого буфера, а не длина сообщения
+    public static long sizeOf(ChatPacket packet) {
+        return BufferPool.bufferSize(packet.getLength()) + (long) packet.getRecipients().size() * RECIPIENT_OVERHEAD;
+    }
+
+    public long getPendingBytes() {
+        return pendingBytes.get();
+    }
+
+    // Регистрация получателя у соседа перед первой отправкой ему (в потоке цикла).
+    // Номер на связи выдается здесь, а не при создании сообщения: сообщение, которое так и не ушло
+    // (отклонено бюджетом, выброшено из очереди окна), не оставляет пропуска в номерах соседа
+    public void track(DeliveryDataTuple recipient) {
+        recipient.sequenceNumber = recipient.recipient.nextSequenceNumber();
+        recipient.recipient.addUnacknowledged(recipient);
+    }
+
+    //отмечаем сообщение с номером sequenceNumber, как полученное узлом node
+    //возвращает подтвердившего получателя или null, если такого получателя нет
+    public DeliveryDataTuple acknowledge(Node node, int sequenceNumber) {
+        DeliveryDataTuple recipient = node.removeUnacknowledged(sequenceNumber);
+        if (recipient == null)
+            return null;
+
+        complete(recipient);
+        return recipient;
+    }
+
+    //прекращаем доставку получателю (например, если превышено количество отправок)
+    public void giveUp(DeliveryDataTuple recipient) {
+        if (recipient.recipient.removeUnacknowledged(recipient))
+            complete(recipient);
+    }
+
+    //прекращаем доставку получателю, которому сообщение так и не было отправлено (ждало места в окне)
+    public void discard(DeliveryDataTuple recipient) {
+        complete(recipient);
+    }
+
+    //true, если получатель еще не подтвердил доставку (сообщение ему уже отправлено)
+    public boolean isPending(DeliveryDataTuple recipient) {
+        return recipient.recipient.getUnacknowledged(recipient.sequenceNumber) == recipient;
+    }
+
+    public boolean contains(ChatPacket packet) {
+        return pending.containsKey(packet);
+    }
+
+    // Ожидание, пока сообщение покинет таблицу (доставлено или доставка прекращена), не дольше timeout мс.
+    // Вернет false, если время вышло
+    public boolean awaitRelease(ChatPacket packet, long timeout) throws InterruptedException {
+        PendingMessage message = pending.get(packet);
+        if (message == null)
+            return true;
+
+        try {
+            message.release.get(timeout, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException e) {
+            return true;
+        }
+    }
+
+    public int size() {
+        return pending.size();
+    }
+
+    //убираем получателя из сообщения, и само сообщение, если получателей больше не осталось
+    private void complete(DeliveryDataTuple recipient) {
+        ChatPacket packet = recipient.packet;
+        packet.markAsReceiving(recipient);
+
+        if (!packet.isDeliver())
+            return;
+
+        PendingMessage message = pending.remove(packet);
+        if (message == null)
+            return;
+        pendingBytes.addAndGet(-message.size);
+
+        ReleaseListener listener = releaseListener;
+        if (listener != null)
+            listener.released(packet);
+
+        //будим тех, кто ждет доставки этого сообщения
+        message.release.complete(null);
+    }
+}
@@ -0,0 +1,244 @@
+package ru;
+
+import ru.chatpacket.ChatFrame;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+// Стадии обработки принятых сообщений, которые выполняются вне цикла событий.
+// Цикл событий (стадия ввода-вывода) принимает датаграммы, разбирает BATCH, обрабатывает отчеты о доставке
+// и передает остальные кадры сюда. Потоки-обработчики (стадия разбора и обработки) ведут окна приема соседей,
+// отсеивают дубликаты, подтверждают сообщения, решают, кому их переслать, собирают фрагменты, распаковывают
+// и выводят текст. Кадры одного соседа всегда попадают в один и тот же поток, поэтому порядок обработки на связи
+// сохраняется, а сообщения разных соседей обрабатываются параллельно. Отправка (стадия вывода) выполняется
+// циклом событий: обработчики передают ему отчеты, пересылаемые сообщения и изменения топологии.
+// У каждого потока свое кольцо ячеек (один производитель - цикл, один потребитель - поток): кадр копируется
+// в буфер ячейки, и ячейка со своим буфером возвращается циклу, когда поток ее обработал, поэтому передача кадра
+// ничего не создает. Если кольцо заполнено, кадр не принимается, а цикл перестает читать сокет, пока поток
+// не освободит место: необработанные кадры текущей датаграммы цикл задерживает у себя и передает перед
+// возобновлением чтения, новые датаграммы ждут в буфере сокета, и память очереди ограничена кольцами. Потоки
+// никогда не ждут цикл (их сообщения бюджет исходящих не задерживает), поэтому остановленное чтение всегда возобновится.
+// Количество ячеек на поток задается через -Dchattree.pipelineQueue.
+class ReceivePipeline {
+    // Обработчик кадра, принятого от соседа sender (вызывается в потоке-обработчике)
+    interface FrameHandler {
+        void handle(ChatFrame frame, InetSocketAddress sender);
+    }
+
+    //начальный размер буфера ячейки (датаграмма целиком)
+    private static final int SLOT_BUFFER_SIZE = 2048;
+
+    // Кадр, переданный потоку-обработчику
+    private static final class Slot {
+        ByteBuffer buffer;
+        final ChatFrame frame = new ChatFrame();
+        InetSocketAddress sender;
+    }
+
+    // Поток-обработчик со своим кольцом ячеек
+    private final class Worker implements Runnable {
+        private final Slot[] slots;
+        private final int mask;
+        //сколько ячеек заполнил цикл и сколько обработал поток
+        private final AtomicLong published = new AtomicLong();
+        private final AtomicLong consumed = new AtomicLong();
+        //копии номеров для своей стороны кольца
+        private long tail = 0;
+        private long head = 0;
+        //соседи, которым поток должен отложенный отчет (задержка у всех одинаковая, поэтому очередь
+        //упорядочена по времени отправки, только этот поток)
+        private final ArrayDeque<Node> delayedReports = new ArrayDeque<>();
+        private final AtomicBoolean sleeping = new AtomicBoolean(false);
+        private final Thread thread;
+
+        Worker(int capacity, String name) {
+            int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+            slots = new Slot[size];
+            for (int i = 0; i < size; i++)
+                slots[i] = new Slot();
+            mask = size - 1;
+
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        //есть ли в кольце место для еще одного кадра (только цикл)
+        boolean hasRoom() {
+            return tail - consumed.get() < slots.length;
+        }
+
+        Slot claim() {
+            return slots[(int) tail & mask];
+        }
+
+        void publish() {
+            published.set(++tail);
+            if (sleeping.get() && sleeping.compareAndSet(true, false))
+                LockSupport.unpark(thread);
+        }
+
+        @Override
+        public void run() {
+            for (;;) {
+                boolean handled = drain();
+                long nextReport = sendDueReports();
+                if (!handled) {
+                    if (!running)
+                        return;
+                    //флаг ставим до повторной проверки: кадр, добавленный после нее, разбудит поток
+                    sleeping.set(true);
+                    if (!drain() && running) {
+                        if (nextReport < 0)
+                            LockSupport.park(this);
+                        else
+                            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(Math.max(nextReport, 1)));
+                    }
+                    sleeping.set(false);
+                }
+            }
+        }
+
+        // Обработка всех ждущих ячеек, вернет false, если ждущих не было
+        private boolean drain() {
+            boolean handled = false;
+            long available = published.get();
+            while (head < available) {
+                handle(slots[(int) head & mask]);
+                //ячейка и ее буфер возвращаются циклу только после обработки
+                consumed.set(++head);
+                handled = true;
+            }
+
+            //флаг проверяется после освобождения ячеек: цикл ставит его до повторной проверки места
+            if (readPaused.get() && readPaused.compareAndSet(true, false))
+                eventLoop.resumeReading();
+            return handled;
+        }
+
+        // Отложенные отчеты, время которых пришло. Вернет, через сколько мс придет время следующего (-1 - отчетов нет)
+        private long sendDueReports() {
+            long now = TimerWheel.currentTime();
+            Node node;
+            while ((node = delayedReports.peek()) != null && node.getReportDeadline() <= now) {
+                delayedReports.poll();
+                try {
+                    reportHandler.accept(node);
+                } catch (RuntimeException e) {
+                    ConsoleSink.println("[ERROR] Report to " + node.getSocketAddress() + " can't be sent: " + e);
+                }
+            }
+            return node == null ? -1 : node.getReportDeadline() - now;
+        }
+    }
+
+    private final FrameHandler handler;
+    private final Consumer<Node> reportHandler;
+    private final EventLoop eventLoop;
+    private final Worker[] workers;
+    //цикл перестал читать сокет, потому что кольцо одного из потоков заполнено
+    private final AtomicBoolean readPaused = new AtomicBoolean(false);
+    private volatile boolean running = true;
+
+    // workerCount - размер пула стадии разбора и обработки, reportHandler отправляет отложенный отчет соседу
+    // (вызывается в его потоке-обработчике), eventLoop - цикл, чтение которого останавливается при заполненном кольце
+    ReceivePipeline(int workerCount, FrameHandler _handler, Consumer<Node> _reportHandler, EventLoop _eventLoop) {
+        if (workerCount <= 0)
+            throw new IllegalArgumentException("[ERROR] Receive pipeline needs at least one worker: " + workerCount);
+
+        handler = _handler;
+        reportHandler = _reportHandler;
+        eventLoop = _eventLoop;
+        int capacity = Integer.getInteger("chattree.pipelineQueue", 1024);
+        workers = new Worker[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Worker(capacity, "receive-worker-" + i);
+            workers[i].thread.start();
+        }
+    }
+
+    int getWorkerCount() {
+        return workers.length;
+    }
+
+    // Передача кадра на обработку (в потоке цикла). Кадр ссылается на буфер приема, поэтому он копируется
+    // в буфер ячейки. Вернет false, если кольцо потока заполнено: кадр не принят, и чтение сокета остановлено
+    boolean submit(ChatFrame frame, InetSocketAddress sender) {
+        Worker worker = workers[partition(sender)];
+        if (!worker.hasRoom()) {
+            //флаг ставим до повторной проверки: поток, который освободит место после нее, возобновит чтение
+            readPaused.set(true);
+            if (!worker.hasRoom()) {
+                eventLoop.pauseReading();
+                return false;
+            }
+        }
+
+        Slot slot = worker.claim();
+        int length = frame.length();
+        if (slot.buffer == null || slot.buffer.capacity() < length)
+            slot.buffer = ByteBuffer.allocate(Math.max(length, SLOT_BUFFER_SIZE));
+        slot.buffer.put(0, frame.buffer(), frame.offset(), length);
+        slot.frame.wrap(slot.buffer, 0, length);
+        slot.sender = sender;
+        worker.publish();
+        return true;
+    }
+
+    // Отложенный отчет соседу node (в его потоке-обработчике): время отправки уже записано в node.scheduleReport
+    void scheduleReport(Node node) {
+        workers[partition(node.getSocketAddress())].delayedReports.add(node);
+    }
+
+    //текущий поток - один из потоков-обработчиков
+    boolean inWorker() {
+        Thread current = Thread.currentThread();
+        for (Worker worker : workers) {
+            if (worker.thread == current)
+                return true;
+        }
+        return false;
+    }
+
+    //потоки обработают уже переданные кадры и завершатся
+    void shutdown() {
+        running = false;
+        for (Worker worker : workers)
+            LockSupport.unpark(worker.thread);
+    }
+
+    boolean awaitTermination(long timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        for (Worker worker : workers) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0)
+                return !worker.thread.isAlive();
+            worker.thread.join(remaining);
+            if (worker.thread.isAlive())
+                return false;
+        }
+        return true;
+    }
+
+    private void handle(Slot slot) {
+        InetSocketAddress sender = slot.sender;
+        try {
+            handler.handle(slot.frame, sender);
+        } catch (RuntimeException e) {
+            ConsoleSink.println("[ERROR] Message from " + sender + " can't be handled: " + e);
+        } finally {
+            slot.sender = null;
+        }
+    }
+
+    // Номер потока-обработчика соседа. Хеш адреса совпадает с хешем узла (Node.hashCode), поэтому кадры
+    // и отложенные отчеты соседа попадают в один поток
+    private int partition(InetSocketAddress sender) {
+        return Math.floorMod(sender.hashCode(), workers.length);
+    }
+}
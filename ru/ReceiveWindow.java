@@ -0,0 +1,138 @@
+package ru;
+
+// Окно приема сообщений от соседа.
+// Sequence number на каждой связи растут монотонно, поэтому полученные сообщения описываются границей base
+// (все сообщения до нее получены) и битовой картой сообщений после нее. По окну отсеиваются дубликаты
+// и строится отчет о доставке: кумулятивное подтверждение (base - 1) + битовая карта выборочных подтверждений.
+// Сравнение номеров учитывает переполнение int. Не потокобезопасно: используется только потоком цикла событий.
+public class ReceiveWindow {
+    //количество бит в выборочном подтверждении
+    public static final int SACK_BITS = 64;
+
+    //битовая карта полученных сообщений, номер seq хранится в бите seq & (size - 1)
+    private final long[] bits;
+    private final int size;
+    //следующий ожидаемый sequence number
+    private int base;
+
+    //size - сколько номеров помнит окно (округляется вверх до степени двойки, не меньше SACK_BITS)
+    public ReceiveWindow(int _size, int initialSequenceNumber) {
+        int windowSize = SACK_BITS;
+        while (windowSize < _size)
+            windowSize <<= 1;
+
+        size = windowSize;
+        bits = new long[size / 64];
+        base = initialSequenceNumber;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    //true, если номер лежит в окне (или недавно из него вышел)
+    public boolean inRange(int sequenceNumber) {
+        int distance = sequenceNumber - base;
+        return distance >= -size && distance < size;
+    }
+
+    //начать окно заново с номера sequenceNumber (сосед перезапустился)
+    public void reset(int sequenceNumber) {
+        for (int i = 0; i < bits.length; i++)
+            bits[i] = 0;
+        base = sequenceNumber;
+    }
+
+    // Отметка о получении сообщения. Вернет false, если сообщение уже было получено.
+    // Если номер выходит за окно, то окно сдвигается, а пропущенные сообщения считаются потерянными
+    public boolean accept(int sequenceNumber) {
+        int distance = sequenceNumber - base;
+        if (distance < 0)
+            return false;
+
+        if (distance >= size) {
+            if (distance >= 2 * size) {
+                reset(sequenceNumber - size + 1);
+            } else {
+                while (sequenceNumber - base >= size) {
+                    clear(base);
+                    base++;
+                }
+            }
+        }
+
+        if (isSet(sequenceNumber))
+            return false;
+
+        set(sequenceNumber);
+        //сдвигаем границу по всем подряд полученным сообщениям
+        while (isSet(base)) {
+            clear(base);
+            base++;
+        }
+        return true;
+    }
+
+    // Отправитель прекратил доставку сообщений до sequenceNumber включительно (сообщение SKIP): граница сдвигается
+    // за них, иначе кумулятивное подтверждение навсегда остановится на брошенном номере, а битовая карта
+    // не подтвердит сообщения дальше SACK_BITS. Вернет false, если граница уже дальше
+    public boolean skipTo(int sequenceNumber) {
+        int newBase = sequenceNumber + 1;
+        int distance = newBase - base;
+        if (distance <= 0)
+            return false;
+
+        if (distance >= size) {
+            reset(newBase);
+        } else {
+            while (base != newBase) {
+                clear(base);
+                base++;
+            }
+        }
+
+        //сообщения после пропуска, которые уже получены
+        while (isSet(base)) {
+            clear(base);
+            base++;
+        }
+        return true;
+    }
+
+    //true, если сообщение с этим номером еще не получено (окно не меняется)
+    public boolean isNew(int sequenceNumber) {
+        int distance = sequenceNumber - base;
+        return distance >= 0 && (distance >= size || !isSet(sequenceNumber));
+    }
+
+    //последний номер, до которого получены все сообщения
+    public int getCumulativeAck() {
+        return base - 1;
+    }
+
+    //бит i - получено сообщение с номером getCumulativeAck() + 2 + i (номер base не получен по определению)
+    public long getSelectiveAcks() {
+        long sack = 0;
+        for (int i = 0; i < SACK_BITS; i++) {
+            if (isSet(base + 1 + i))
+                sack |= 1L << i;
+        }
+
+        return sack;
+    }
+
+    private boolean isSet(int sequenceNumber) {
+        int index = sequenceNumber & (size - 1);
+        return (bits[index >>> 6] & (1L << index)) != 0;
+    }
+
+    private void set(int sequenceNumber) {
+        int index = sequenceNumber & (size - 1);
+        bits[index >>> 6] |= 1L << index;
+    }
+
+    private void clear(int sequenceNumber) {
+        int index = sequenceNumber & (size - 1);
+        bits[index >>> 6] &= ~(1L << index);
+    }
+}
@@ -0,0 +1,75 @@
+package ru;
+
+import ru.chatpacket.DeliveryDataTuple;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Планировщик повторной отправки сообщений.
+// Каждый получатель неподтвержденного сообщения стоит в колесе таймеров со своим временем повторной отправки,
+// которое берется из RTO соседа с экспоненциальной задержкой: при срабатывании таймера сообщение отправляется
+// этому получателю повторно и снова ставится в колесо, при подтверждении доставки таймер отменяется.
+// Колесо крутит цикл событий по тикам, поэтому повторная отправка не зависит от входящего трафика.
+public class RetransmissionScheduler {
+    private final TimerWheel wheel;
+    //таймер повторной отправки для каждого получателя, который не подтвердил доставку
+    private final Map<DeliveryDataTuple, TimerWheel.Timeout> timeouts = new ConcurrentHashMap<>();
+
+    private final PendingDeliveryTable waitingReport;
+    private final EventLoop eventLoop;
+    private final ChatMetrics metrics;
+    private final int maxSendCount;
+
+    public RetransmissionScheduler(PendingDeliveryTable _waitingReport, EventLoop _eventLoop, ChatMetrics _metrics,
+                                   int _maxSendCount) {
+        waitingReport = _waitingReport;
+        eventLoop = _eventLoop;
+        wheel = _eventLoop.getTimerWheel();
+        metrics = _metrics;
+        maxSendCount = _maxSendCount;
+    }
+
+    //поставить получателя в очередь на повторную отправку через его текущий RTO
+    public void schedule(DeliveryDataTuple recipient) {
+        long delay = recipient.recipient.getRetransmissionTimeout(recipient.sendCounter);
+        TimerWheel.Timeout newTimeout = wheel.schedule(() -> expire(recipient), delay);
+        TimerWheel.Timeout oldTimeout = timeouts.put(recipient, newTimeout);
+
+        if (oldTimeout != null)
+            wheel.cancel(oldTimeout);
+    }
+
+    //отмена повторной отправки (получатель подтвердил доставку)
+    public void cancel(DeliveryDataTuple recipient) {
+        TimerWheel.Timeout oldTimeout = timeouts.remove(recipient);
+
+        if (oldTimeout != null)
+            wheel.cancel(oldTimeout);
+    }
+
+    // Таймер получателя истек: отправляем ему сообщение повторно или прекращаем доставку,
+    // если попыток больше не осталось (выполняется в потоке цикла событий).
+    // Истекший таймер - признак потери, поэтому окно отправки соседа уменьшается
+    private void expire(DeliveryDataTuple recipient) {
+        if (!waitingReport.isPending(recipient)) {
+            timeouts.remove(recipient);
+            return;
+        }
+
+        SendWindow window = recipient.recipient.getSendWindow();
+        if (window.onLoss(recipient.lastSendingTime))
+            metrics.sendWindowReductions.increment();
+
+        if (recipient.sendCounter < maxSendCount) {
+            metrics.retransmissions.increment();
+            eventLoop.send(recipient.packet, recipient);
+            schedule(recipient);
+        } else {
+            timeouts.remove(recipient);
+            metrics.deliveryGiveUps.increment();
+            waitingReport.giveUp(recipient);
+            //сосед недоступен: сообщения, которые ждут места в окне, ему тоже не доставить
+            window.onFailure();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package ru;
+
+import ru.chatpacket.DeliveryDataTuple;
+
+import java.util.ArrayDeque;
+
+// Окно отправки на связи с одним соседом.
+// Неподтвержденных сообщений у соседа может быть не больше размера окна, остальные ждут в очереди узла,
+// пока отчеты о доставке не освободят место. Размер окна либо задан, либо подстраивается по AIMD:
+// каждое подтверждение увеличивает окно на 1/окно (примерно +1 сообщение за RTT), а потеря (истек таймер
+// повторной отправки) уменьшает его вдвое. Потери сообщений, отправленных до прошлого уменьшения, окно больше
+// не уменьшают, поэтому пачка потерь одного RTT уменьшает его один раз.
+// Изменяется только потоком цикла событий, размеры для статистики можно читать из любого потока.
+public class SendWindow {
+    //начальный (или постоянный) и максимальный размер окна, подстраивать ли его по потерям
+    private static volatile int initialSize = Integer.getInteger("chattree.sendWindow", 64);
+    private static volatile int maxSize = Integer.getInteger("chattree.maxSendWindow", 512);
+    private static volatile boolean adaptive = Boolean.parseBoolean(System.getProperty("chattree.adaptiveWindow", "true"));
+
+    //сообщения, которые ждут места в окне (в порядке отправки)
+    private final ArrayDeque<DeliveryDataTuple> queue = new ArrayDeque<>();
+    private volatile int queuedMessages = 0;
+    //размер окна (дробный, чтобы копить аддитивное увеличение)
+    private volatile double size = initialSize;
+    //время (System.nanoTime) последнего уменьшения окна: потери сообщений, отправленных раньше, его уже не уменьшают
+    private long reducedAt = System.nanoTime();
+    //связь признана недоступной (сообщение исчерпало попытки отправки), очередь нужно сбросить
+    private boolean failed = false;
+
+    //настройка окна для новых узлов
+    public static void configure(int _initialSize, int _maxSize, boolean _adaptive) {
+        if (_initialSize <= 0 || _maxSize < _initialSize)
+            throw new IllegalArgumentException("[ERROR] Incorrect send window size: " + _initialSize + "/" + _maxSize);
+        initialSize = _initialSize;
+        maxSize = _maxSize;
+        adaptive = _adaptive;
+    }
+
+    //можно ли отправить еще одно сообщение, когда неподтвержденных inFlight
+    boolean isOpen(int inFlight) {
+        return inFlight < (int) size;
+    }
+
+    boolean hasQueued() {
+        return !queue.isEmpty();
+    }
+
+    void enqueue(DeliveryDataTuple recipient) {
+        queue.add(recipient);
+        queuedMessages = queue.size();
+    }
+
+    DeliveryDataTuple dequeue() {
+        DeliveryDataTuple recipient = queue.poll();
+        queuedMessages = queue.size();
+        return recipient;
+    }
+
+    //сообщение подтверждено (связь жива)
+    void onAcknowledged() {
+        failed = false;
+        if (adaptive)
+            size = Math.min(size + 1 / size, maxSize);
+    }
+
+    //истек таймер повторной отправки сообщения, отправленного в момент sendingTime, вернет true, если окно уменьшено
+    boolean onLoss(long sendingTime) {
+        if (!adaptive || sendingTime - reducedAt < 0)
+            return false;
+
+        size = Math.max(size / 2, 1);
+        reducedAt = System.nanoTime();
+        return true;
+    }
+
+    // Сообщение исчерпало попытки отправки: сообщения, которые уже ждут места в окне, соседу тоже не доставить.
+    // Признак относится только к ним, поэтому без очереди он не ставится: иначе он остался бы до следующей
+    // очереди и сбросил бы сообщения, поставленные уже после восстановления связи
+    void onFailure() {
+        failed = !queue.isEmpty();
+    }
+
+    //сброс признака недоступности, вернет true, если связь была признана недоступной
+    boolean resetFailure() {
+        boolean wasFailed = failed;
+        failed = false;
+        return wasFailed;
+    }
+
+    //текущий размер окна
+    public int getSize() {
+        return (int) size;
+    }
+
+    //сколько сообщений ждут места в окне
+    public int getQueuedMessages() {
+        return queuedMessages;
+    }
+}
@@ -0,0 +1,80 @@
+package ru;
+
+import ru.chatpacket.DeliveryDataTuple;
+
+// Таблица получателей, которые еще не подтвердили доставку, по sequence number связи с соседом.
+// Номера на связи идут подряд, поэтому получатель хранится в кольцевом массиве в ячейке seq & (size - 1):
+// поиск и удаление - O(1) без упаковки номера в Integer. Если ячейка занята другим номером (неподтвержденных
+// номеров больше, чем ячеек), то массив увеличивается вдвое.
+// Не потокобезопасная: используется только потоком цикла событий.
+class SequenceTable {
+    private static final int INITIAL_SIZE = 64;
+
+    private DeliveryDataTuple[] slots = new DeliveryDataTuple[INITIAL_SIZE];
+    private int count = 0;
+
+    void put(DeliveryDataTuple recipient) {
+        while (slots[recipient.sequenceNumber & (slots.length - 1)] != null
+                && slots[recipient.sequenceNumber & (slots.length - 1)].sequenceNumber != recipient.sequenceNumber)
+            grow();
+
+        int index = recipient.sequenceNumber & (slots.length - 1);
+        if (slots[index] == null)
+            count++;
+        slots[index] = recipient;
+    }
+
+    DeliveryDataTuple get(int sequenceNumber) {
+        DeliveryDataTuple recipient = slots[sequenceNumber & (slots.length - 1)];
+        return recipient != null && recipient.sequenceNumber == sequenceNumber ? recipient : null;
+    }
+
+    DeliveryDataTuple remove(int sequenceNumber) {
+        int index = sequenceNumber & (slots.length - 1);
+        DeliveryDataTuple recipient = slots[index];
+        if (recipient == null || recipient.sequenceNumber != sequenceNumber)
+            return null;
+
+        slots[index] = null;
+        count--;
+        return recipient;
+    }
+
+    //удаление конкретного получателя, false - если его нет в таблице
+    boolean remove(DeliveryDataTuple recipient) {
+        int index = recipient.sequenceNumber & (slots.length - 1);
+        if (slots[index] != recipient)
+            return false;
+
+        slots[index] = null;
+        count--;
+        return true;
+    }
+
+    int size() {
+        return count;
+    }
+
+    private void grow() {
+        DeliveryDataTuple[] oldSlots = slots;
+        for (;;) {
+            DeliveryDataTuple[] newSlots = new DeliveryDataTuple[slots.length * 2];
+            boolean collision = false;
+            for (DeliveryDataTuple recipient : oldSlots) {
+                if (recipient == null)
+                    continue;
+
+                int index = recipient.sequenceNumber & (newSlots.length - 1);
+                if (newSlots[index] != null) {
+                    collision = true;
+                    break;
+                }
+                newSlots[index] = recipient;
+            }
+
+            slots = newSlots;
+            if (!collision)
+                return;
+        }
+    }
+}
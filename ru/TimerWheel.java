@@ -0,0 +1,213 @@
+package ru;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+// Хешированное колесо таймеров.
+// Таймер попадает в ячейку колеса по своему времени срабатывания, а на каждом тике обрабатывается
+// только одна ячейка, поэтому стоимость тика зависит от количества истекающих таймеров, а не от общего числа таймеров.
+// Ставить и отменять таймеры можно из любого потока, а advance() вызывает только поток-владелец колеса.
+// Поток-владелец ставит и отменяет таймеры сразу в ячейках колеса, минуя очереди (без лишних аллокаций).
+public class TimerWheel {
+    public static final class Timeout {
+        private final Runnable task;
+        //время срабатывания (в миллисекундах по часам колеса)
+        private final long deadline;
+        //сколько еще полных оборотов колеса нужно подождать
+        private long remainingRounds;
+        private volatile boolean cancelled = false;
+
+        //соседи в ячейке колеса
+        private Timeout next;
+        private Timeout prev;
+        private Bucket bucket;
+
+        private Timeout(Runnable _task, long _deadline) {
+            task = _task;
+            deadline = _deadline;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    // Ячейка колеса - двусвязный список таймеров
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        Timeout remove(Timeout timeout) {
+            Timeout next = timeout.next;
+            if (timeout.prev != null)
+                timeout.prev.next = next;
+            if (timeout.next != null)
+                timeout.next.prev = timeout.prev;
+
+            if (timeout == head) {
+                if (timeout == tail) {
+                    head = tail = null;
+                } else {
+                    head = next;
+                }
+            } else if (timeout == tail) {
+                tail = timeout.prev;
+            }
+
+            timeout.prev = timeout.next = null;
+            timeout.bucket = null;
+            return next;
+        }
+    }
+
+    private final long tickDuration;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long startTime;
+    //номер следующего необработанного тика
+    private long tick = 0;
+
+    //новые и отмененные таймеры, которые поток-владелец переносит в колесо на очередном тике
+    private final Queue<Timeout> newTimeouts = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<>();
+    //поток-владелец (тот, кто вызывает advance) и признак того, что он сейчас обходит ячейку колеса
+    private volatile Thread owner = null;
+    private boolean expiring = false;
+
+    //tickDuration - длительность тика в миллисекундах, ticksPerWheel - количество ячеек (округляется до степени двойки)
+    public TimerWheel(long _tickDuration, int ticksPerWheel) {
+        if (_tickDuration <= 0 || ticksPerWheel <= 0)
+            throw new IllegalArgumentException("[ERROR] Incorrect timer wheel parameters");
+
+        int size = 1;
+        while (size < ticksPerWheel)
+            size <<= 1;
+
+        tickDuration = _tickDuration;
+        wheel = new Bucket[size];
+        for (int i = 0; i < size; i++)
+            wheel[i] = new Bucket();
+        mask = size - 1;
+        startTime = currentTime();
+    }
+
+    //монотонные часы колеса в миллисекундах
+    public static long currentTime() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    public long getTickDuration() {
+        return tickDuration;
+    }
+
+    //поставить задачу, которая выполнится через delay миллисекунд
+    public Timeout schedule(Runnable task, long delay) {
+        Timeout timeout = new Timeout(task, currentTime() + Math.max(delay, 0));
+        if (Thread.currentThread() == owner && !expiring)
+            add(timeout);
+        else
+            newTimeouts.add(timeout);
+        return timeout;
+    }
+
+    //отмена таймера, вернет false, если таймер уже был отменен
+    public boolean cancel(Timeout timeout) {
+        if (timeout.cancelled)
+            return false;
+
+        timeout.cancelled = true;
+        if (Thread.currentThread() == owner) {
+            //во время обхода ячейки отмененный таймер уберет сам обход, а таймер вне колеса - перенос новых таймеров
+            if (!expiring && timeout.bucket != null)
+                timeout.bucket.remove(timeout);
+        } else {
+            cancelledTimeouts.add(timeout);
+        }
+        return true;
+    }
+
+    //время окончания следующего тика (до него колесо можно не трогать)
+    public long nextTickTime() {
+        return startTime + (tick + 1) * tickDuration;
+    }
+
+    //обработка всех тиков, которые закончились к текущему моменту
+    public void advance() {
+        if (owner == null)
+            owner = Thread.currentThread();
+        long now = currentTime();
+
+        while (nextTickTime() <= now) {
+            long tickDeadline = nextTickTime();
+            processCancelledTimeouts();
+            transferNewTimeouts();
+            expiring = true;
+            try {
+                expireTimeouts(wheel[(int) (tick & mask)], tickDeadline);
+            } finally {
+                expiring = false;
+            }
+            tick++;
+        }
+    }
+
+    private void processCancelledTimeouts() {
+        Timeout timeout;
+        while ((timeout = cancelledTimeouts.poll()) != null) {
+            if (timeout.bucket != null)
+                timeout.bucket.remove(timeout);
+        }
+    }
+
+    private void transferNewTimeouts() {
+        Timeout timeout;
+        while ((timeout = newTimeouts.poll()) != null) {
+            if (!timeout.cancelled)
+                add(timeout);
+        }
+    }
+
+    //помещение таймера в ячейку колеса по времени срабатывания
+    private void add(Timeout timeout) {
+        long expireTick = Math.max((timeout.deadline - startTime) / tickDuration, tick);
+        timeout.remainingRounds = (expireTick - tick) / wheel.length;
+        wheel[(int) (expireTick & mask)].add(timeout);
+    }
+
+    private void expireTimeouts(Bucket bucket, long tickDeadline) {
+        Timeout timeout = bucket.head;
+
+        while (timeout != null) {
+            if (timeout.cancelled) {
+                timeout = bucket.remove(timeout);
+            } else if (timeout.remainingRounds <= 0 && timeout.deadline <= tickDeadline) {
+                Timeout next = bucket.remove(timeout);
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    ConsoleSink.println("[Timer Message] Timer task failed: " + e.getMessage());
+                }
+                timeout = next;
+            } else {
+                timeout.remainingRounds--;
+                timeout = timeout.next;
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package ru.chatpacket;
+
+import ru.Node;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static ru.chatpacket.ProtocolMagicValues.COMPRESSED;
+import static ru.chatpacket.ProtocolMagicValues.FRAGMENT;
+
+// Фрагмент текстового сообщения, которое не помещается в одну датаграмму. Каждый фрагмент - отдельное сообщение
+// со своим sequence number, поэтому подтверждается и отправляется повторно независимо от остальных.
+// Формат: Header (Тип сообщения, Sequence Number) | ID сообщения | номер фрагмента | количество фрагментов |
+// длина всего текста | смещение фрагмента в тексте | длина фрагмента | байты фрагмента
+public class ChatFragmentMessage implements ChatPacket {
+    //текст всего сообщения в кодировке UTF-8 (общий для всех фрагментов)
+    private final byte[] textBytes;
+    //textBytes сжаты PayloadCodec
+    private final boolean compressed;
+    private final int messageId;
+    private final int fragmentIndex;
+    private final int fragmentCount;
+    private final int offset;
+    private final int length;
+    //получатели, которые еще не подтвердили доставку
+    private final Set<DeliveryDataTuple> recipientsList = ConcurrentHashMap.newKeySet();
+
+    public ChatFragmentMessage(byte[] _textBytes, int _messageId, int _fragmentIndex, int _fragmentCount,
+                               int _offset, int _length, boolean _compressed) {
+        textBytes = _textBytes;
+        compressed = _compressed;
+        messageId = _messageId;
+        fragmentIndex = _fragmentIndex;
+        fragmentCount = _fragmentCount;
+        offset = _offset;
+        length = _length;
+    }
+
+    @Override
+    public void setRecipient(Node recipient) {
+        DeliveryDataTuple currentPacket = new DeliveryDataTuple();
+        currentPacket.recipient = recipient;
+        currentPacket.packet = this;
+        //sequence number связи с получателем выдается при первой отправке ему (PendingDeliveryTable.track)
+        recipientsList.add(currentPacket);
+    }
+
+    public void setRecipient(Set<Node> _recipients) {
+        for (Node currentNode : _recipients) {
+            setRecipient(currentNode);
+        }
+    }
+
+    @Override
+    public int getLength() {
+        return ProtocolMagicValues.FRAGPOS + length;
+    }
+
+    @Override
+    public void encode(ByteBuffer parser) {
+        parser.put(compressed ? (byte) (FRAGMENT | COMPRESSED) : FRAGMENT);
+        //sequence number заполняется для каждого получателя при отправке
+        parser.putInt(0);
+        parser.putInt(messageId);
+        parser.putShort((short) fragmentIndex);
+        parser.putShort((short) fragmentCount);
+        parser.putInt(textBytes.length);
+        parser.putInt(offset);
+        parser.putInt(length);
+        parser.put(textBytes, offset, length);
+    }
+
+    @Override
+    public Collection<DeliveryDataTuple> getRecipients() {
+        return recipientsList;
+    }
+
+    @Override
+    public void markAsReceiving(DeliveryDataTuple recipient) {
+        recipientsList.remove(recipient);
+    }
+
+    @Override
+    public boolean isDeliver() {
+        return recipientsList.isEmpty();
+    }
+}
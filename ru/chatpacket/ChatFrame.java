@@ -0,0 +1,67 @@
+package ru.chatpacket;
+
+import java.nio.ByteBuffer;
+
+// Кадр сообщения в принятой датаграмме (flyweight): смещения полей считаются от начала кадра, как в ProtocolMagicValues,
+// а данные читаются прямо из буфера приема. Один объект переиспользуется для всех принятых кадров,
+// поэтому кадр валиден только до следующего wrap (то есть пока обрабатывается текущая датаграмма)
+public class ChatFrame {
+    private ByteBuffer buffer;
+    //начало кадра в буфере и его длина
+    private int offset;
+    private int length;
+
+    public ChatFrame wrap(ByteBuffer _buffer, int _offset, int _length) {
+        if (_offset < 0 || _length < 0 || _offset + _length > _buffer.limit())
+            throw new IndexOutOfBoundsException("Frame is out of datagram bounds");
+
+        buffer = _buffer;
+        offset = _offset;
+        length = _length;
+        return this;
+    }
+
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    public int offset() {
+        return offset;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public byte get(int position) {
+        return buffer.get(index(position, 1));
+    }
+
+    public short getShort(int position) {
+        return buffer.getShort(index(position, 2));
+    }
+
+    public int getInt(int position) {
+        return buffer.getInt(index(position, 4));
+    }
+
+    public long getLong(int position) {
+        return buffer.getLong(index(position, 8));
+    }
+
+    //копирование count байт кадра, начиная с position, в массив
+    public void get(int position, byte[] destination, int destinationOffset, int count) {
+        buffer.get(index(position, count), destination, destinationOffset, count);
+    }
+
+    public void get(int position, byte[] destination) {
+        get(position, destination, 0, destination.length);
+    }
+
+    //поля за пределами кадра (в том числе в соседних кадрах BATCH) не читаем
+    private int index(int position, int size) {
+        if (position < 0 || size < 0 || position > length - size)
+            throw new IndexOutOfBoundsException("Field at " + position + " is out of frame bounds");
+        return offset + position;
+    }
+}
@@ -2,14 +2,11 @@ package ru.chatpacket;
 
 import ru.Node;
 
-import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.Random;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static ru.chatpacket.ProtocolMagicValues.*;
 
@@ -23,11 +20,13 @@ public class ChatInfoMessage implements ChatPacket {
     private byte messageType;
     private Node newParent;
     private String nodeName;
+    //имя в кодировке UTF-8 (кодируется один раз)
+    private byte[] nodeNameBytes;
+    //возможности нашего узла (для CHILD/PARENT)
+    private byte capabilities = 0;
 
-    private long lastSendingTime;
-    private int sendCounter = 0;
-    private ArrayList<DeliveryDataTuple> recipientsList = new ArrayList<>();
-    private Random randGenerator = new Random();
+    //получатели, которые еще не подтвердили доставку
+    private final Set<DeliveryDataTuple> recipientsList = ConcurrentHashMap.newKeySet();
 
     //инициализация сообщения (какого оно типа)
     public ChatInfoMessage(byte _messageType) {
@@ -38,7 +37,8 @@ public class ChatInfoMessage implements ChatPacket {
     public void setRecipient(Node recipient) {
         DeliveryDataTuple currentTuple = new DeliveryDataTuple();
         currentTuple.recipient = recipient;
-        currentTuple.sequenceNumber = randGenerator.nextInt(Integer.MAX_VALUE);
+        currentTuple.packet = this;
+        //sequence number связи с получателем выдается при первой отправке ему (PendingDeliveryTable.track)
         recipientsList.add(currentTuple);
     }
 
@@ -51,8 +51,16 @@ public class ChatInfoMessage implements ChatPacket {
 
     //устанавили наше имя
     public void setNodeName(String _nodeName) throws ChatInfoMessageException {
-        if (messageType == CHILD || messageType == PARENT)
+        if (messageType == CHILD || messageType == PARENT) {
             nodeName = _nodeName;
+            nodeNameBytes = nodeName.getBytes(StandardCharsets.UTF_8);
+        } else
+            throw new ChatInfoMessageException("Illegal operation for non CHILD/PARENT message");
+    }
+
+    public void setCapabilities(byte _capabilities) throws ChatInfoMessageException {
+        if (messageType == CHILD || messageType == PARENT)
+            capabilities = _capabilities;
         else
             throw new ChatInfoMessageException("Illegal operation for non CHILD/PARENT message");
     }
@@ -65,89 +73,57 @@ public class ChatInfoMessage implements ChatPacket {
     }
 
     @Override
-    public void send(DatagramSocket socket) {
-        ByteBuffer parser;
-
+    public int getLength() {
         //если сообщение для соединения с родителем/потомком
         if (messageType == CHILD || messageType == PARENT)
-            parser = ByteBuffer.wrap(new byte[nodeName.getBytes().length + 10]);
+            return nodeNameBytes.length + 11;
         //если сообщение о новом родителе
         else if (messageType == NEWPARENT)
-            parser = ByteBuffer.wrap(new byte[14]);
+            return 14;
         //если сообщение о отстутсвии родителя/потомков
         else
-            parser = ByteBuffer.wrap(new byte[6]);
-
-        for (DeliveryDataTuple recipient : recipientsList)
-        {
-            //тип сообщения - INFO
-            parser.clear();
-            parser.put(INFO);
-
-            //номер сообщения
-            parser.putInt(recipient.sequenceNumber);
-            //тип INFO сообщения
-            parser.put(messageType);
-
-            //если мы хотим сообщить, что мы потомок/родитель
-            if (messageType == CHILD || messageType == PARENT)
-            {
-                //длина + наше имя
-                parser.putInt(nodeName.getBytes().length);
-                parser.put(nodeName.getBytes());
-            }
-            //если сообщение о новом родителе
-            else if (messageType == NEWPARENT)
-            {
-                //ip-адрес + порт
-                parser.put(newParent.getAddress().getAddress());
-                parser.putInt(newParent.getPort());
-            }
-
-            try {
-                //создали пакет
-                DatagramPacket packet = new DatagramPacket(parser.array(), parser.array().length);
-                //кому отправить
-                packet.setAddress(recipient.recipient.getAddress());
-                packet.setPort(recipient.recipient.getPort());
-                //отправили пакет
-                socket.send(packet);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-
-        //отметили время отправки последнего сообщения
-        lastSendingTime = System.currentTimeMillis();
-        //увеличили количество отправлений
-        sendCounter++;
+            return 6;
     }
 
     @Override
-    public void markAsReceiving(int _sequenceNumber) {
-        Iterator<DeliveryDataTuple> iter = recipientsList.iterator();
-
-        while (iter.hasNext()) {
-            DeliveryDataTuple recipient = iter.next();
-            if (recipient.sequenceNumber == _sequenceNumber) {
-                iter.remove();
-                break;
-            }
+    public void encode(ByteBuffer parser) {
+        //тип сообщения - INFO
+        parser.put(INFO);
+
+        //номер сообщения (заполняется для каждого получателя при отправке)
+        parser.putInt(0);
+        //тип INFO сообщения
+        parser.put(messageType);
+
+        //если мы хотим сообщить, что мы потомок/родитель
+        if (messageType == CHILD || messageType == PARENT)
+        {
+            //длина + наше имя + наши возможности
+            parser.putInt(nodeNameBytes.length);
+            parser.put(nodeNameBytes);
+            parser.put(capabilities);
+        }
+        //если сообщение о новом родителе
+        else if (messageType == NEWPARENT)
+        {
+            //ip-адрес + порт
+            parser.put(newParent.getAddress().getAddress());
+            parser.putInt(newParent.getPort());
         }
     }
 
     @Override
-    public boolean isDeliver() {
-        return recipientsList.isEmpty();
+    public Collection<DeliveryDataTuple> getRecipients() {
+        return recipientsList;
     }
 
     @Override
-    public Long getLastSendingTime() {
-        return lastSendingTime;
+    public void markAsReceiving(DeliveryDataTuple recipient) {
+        recipientsList.remove(recipient);
     }
 
     @Override
-    public int getSendingCount() {
-        return sendCounter;
+    public boolean isDeliver() {
+        return recipientsList.isEmpty();
     }
 }
@@ -2,15 +2,20 @@ package ru.chatpacket;
 
 import ru.Node;
 
-import java.net.DatagramSocket;
+import java.nio.ByteBuffer;
+import java.util.Collection;
 
 // Интерфейс сообщения в сети
 public interface ChatPacket {
-    void send(DatagramSocket socket);
+    // размер датаграммы в байтах
+    int getLength();
+    // запись датаграммы в буфер (с текущей позиции). Датаграмма кодируется один раз для всех получателей,
+    // цикл событий перед отправкой записывает в нее sequence number получателя по смещению SEQNUMPOS
+    void encode(ByteBuffer buffer);
     void setRecipient(Node recipient);
 
-    void markAsReceiving(int sequenceNumber);
+    // получатели, которые еще не подтвердили доставку
+    Collection<DeliveryDataTuple> getRecipients();
+    void markAsReceiving(DeliveryDataTuple recipient);
     boolean isDeliver();
-    Long getLastSendingTime();
-    int getSendingCount();
 }
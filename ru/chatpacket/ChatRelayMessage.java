@@ -0,0 +1,61 @@
+package ru.chatpacket;
+
+import ru.Node;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Принятое сообщение (TEXT или FRAGMENT), которое пересылается дальше по дереву без разбора и повторного кодирования.
+// Хранит копию кадра в том виде, в котором он пришел: при отправке в нем меняется только sequence number
+public class ChatRelayMessage implements ChatPacket {
+    //кадр сообщения (позиция - начало кадра, limit - конец)
+    private final ByteBuffer frame;
+    //получатели, которые еще не подтвердили доставку
+    private final Set<DeliveryDataTuple> recipientsList = ConcurrentHashMap.newKeySet();
+
+    public ChatRelayMessage(ByteBuffer _frame) {
+        frame = _frame;
+    }
+
+    @Override
+    public void setRecipient(Node recipient) {
+        DeliveryDataTuple currentPacket = new DeliveryDataTuple();
+        currentPacket.recipient = recipient;
+        currentPacket.packet = this;
+        //sequence number связи с получателем выдается при первой отправке ему (PendingDeliveryTable.track)
+        recipientsList.add(currentPacket);
+    }
+
+    public void setRecipient(Set<Node> _recipients) {
+        for (Node currentNode : _recipients) {
+            setRecipient(currentNode);
+        }
+    }
+
+    @Override
+    public int getLength() {
+        return frame.remaining();
+    }
+
+    @Override
+    public void encode(ByteBuffer parser) {
+        parser.put(frame.duplicate());
+    }
+
+    @Override
+    public Collection<DeliveryDataTuple> getRecipients() {
+        return recipientsList;
+    }
+
+    @Override
+    public void markAsReceiving(DeliveryDataTuple recipient) {
+        recipientsList.remove(recipient);
+    }
+
+    @Override
+    public boolean isDeliver() {
+        return recipientsList.isEmpty();
+    }
+}
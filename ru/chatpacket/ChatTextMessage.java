@@ -2,34 +2,43 @@ package ru.chatpacket;
 
 import ru.Node;
 
-import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
+import static ru.chatpacket.ProtocolMagicValues.COMPRESSED;
 import static ru.chatpacket.ProtocolMagicValues.TEXT;
 
 // Сообщение, типа текстовое сообщение. В нем, как и во всех других типах сообщения, реализуется специальная структура
 // пакета, а именно Header (Тип сообщения, Sequence Number) и далее уже остальная информация (в данном случае, длина
 // текста + сам текст)
 public class ChatTextMessage implements ChatPacket {
-    private String userText = "";
-    private ArrayList<DeliveryDataTuple> recipientsList = new ArrayList<>();
-    private long lastSendingTime;
-    private int sendCounter = 0;
-    private Random randGenerator = new Random();
+    //текст в кодировке UTF-8 (кодируется один раз, обратно в строку не декодируется)
+    private final byte[] textBytes;
+    //textBytes сжаты PayloadCodec
+    private final boolean compressed;
+    //получатели, которые еще не подтвердили доставку
+    private final Set<DeliveryDataTuple> recipientsList = ConcurrentHashMap.newKeySet();
 
     //записли текст сообщения
     public ChatTextMessage(String _userText) {
-        userText = _userText;
+        textBytes = _userText.getBytes(StandardCharsets.UTF_8);
+        compressed = false;
+    }
+
+    //текст сообщения уже в кодировке UTF-8 (и, возможно, сжат)
+    public ChatTextMessage(byte[] _textBytes, boolean _compressed) {
+        textBytes = _textBytes;
+        compressed = _compressed;
     }
 
     @Override
     public void setRecipient(Node recipient) {
         DeliveryDataTuple currentPacket = new DeliveryDataTuple();
         currentPacket.recipient = recipient;
-        currentPacket.sequenceNumber = randGenerator.nextInt(Integer.MAX_VALUE);
+        currentPacket.packet = this;
+        //sequence number связи с получателем выдается при первой отправке ему (PendingDeliveryTable.track)
         recipientsList.add(currentPacket);
     }
 
@@ -40,57 +49,31 @@ public class ChatTextMessage implements ChatPacket {
     }
 
     @Override
-    public void send(DatagramSocket socket) {
-        ByteBuffer parser = ByteBuffer.wrap(new byte[userText.getBytes().length + 9]);
-
-        for (DeliveryDataTuple currentRecipient : recipientsList) {
-            parser.clear();
-            parser.put(TEXT);
-            parser.putInt(currentRecipient.sequenceNumber);
-            parser.putInt(userText.getBytes().length);
-            parser.put(userText.getBytes());
-            DatagramPacket newPacket = new DatagramPacket(parser.array(), parser.array().length);
-            newPacket.setAddress(currentRecipient.recipient.getAddress());
-            newPacket.setPort(currentRecipient.recipient.getPort());
-
-            try {
-                socket.send(newPacket);
-
-            } catch (IOException e) {
-                System.out.println("I/O Error! Can't sending to client " + currentRecipient);
-            }
-        }
-
-        lastSendingTime = System.currentTimeMillis();
-        sendCounter++;
+    public int getLength() {
+        return textBytes.length + 9;
     }
 
     @Override
-    public void markAsReceiving(int _sequenceNumber) {
-        Iterator<DeliveryDataTuple> iter = recipientsList.iterator();
-
-        while (iter.hasNext()) {
-            DeliveryDataTuple recipient = iter.next();
-            if (recipient.sequenceNumber == _sequenceNumber) {
-                iter.remove();
-                break;
-            }
-        }
+    public void encode(ByteBuffer parser) {
+        parser.put(compressed ? (byte) (TEXT | COMPRESSED) : TEXT);
+        //sequence number заполняется для каждого получателя при отправке
+        parser.putInt(0);
+        parser.putInt(textBytes.length);
+        parser.put(textBytes);
     }
 
     @Override
-    public boolean isDeliver() {
-        return recipientsList.isEmpty();
+    public Collection<DeliveryDataTuple> getRecipients() {
+        return recipientsList;
     }
 
     @Override
-    public Long getLastSendingTime() {
-        return lastSendingTime;
+    public void markAsReceiving(DeliveryDataTuple recipient) {
+        recipientsList.remove(recipient);
     }
 
     @Override
-    public int getSendingCount() {
-        return sendCounter;
+    public boolean isDeliver() {
+        return recipientsList.isEmpty();
     }
-
 }
@@ -2,7 +2,15 @@ package ru.chatpacket;
 
 import ru.Node;
 
+// Получатель сообщения и состояние доставки ему
 public class DeliveryDataTuple {
-    public Integer sequenceNumber;
+    //номер на связи с получателем (выдается при первой отправке ему)
+    public int sequenceNumber;
     public Node recipient;
-}
\ No newline at end of file
+    //сообщение, которое доставляется этому получателю
+    public ChatPacket packet;
+    //количество отправок этому получателю, время первой и последней отправки (System.nanoTime)
+    public volatile int sendCounter = 0;
+    public volatile long firstSendingTime;
+    public volatile long lastSendingTime;
+}
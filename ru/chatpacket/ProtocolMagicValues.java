@@ -7,6 +7,13 @@ public class ProtocolMagicValues {
     public static final byte REPORT = 0;
     public static final byte INFO = 1;
     public static final byte TEXT = 2;
+    public static final byte BATCH = 3;
+    public static final byte FRAGMENT = 4;
+    public static final byte SKIP = 5;
+
+    //флаг в байте типа TEXT/FRAGMENT: текст сжат (PayloadCodec), маска - тип сообщения без флагов
+    public static final byte COMPRESSED = 0x40;
+    public static final byte MSGTYPEMASK = 0x3F;
 
     public static final byte SEQNUMPOS = 1;
     public static  final byte MSGTYPEPOS = 0;
@@ -16,9 +23,38 @@ public class ProtocolMagicValues {
     public static final byte TEXTLENPOS = 5;
     public static final byte TEXTPOS = 9;
 
+    //в отчете о доставке на месте sequence number стоит кумулятивное подтверждение, за ним - битовая карта
+    //выборочных подтверждений (бит i - получено сообщение с номером кумулятивное подтверждение + 2 + i)
+    public static final byte REPORTSACKPOS = 5;
+    public static final byte REPORTLEN = 13;
+
+    //в сообщении SKIP на месте sequence number стоит номер, до которого отправитель больше не ждет подтверждения
+    //(все сообщения до него включительно подтверждены или доставка им прекращена)
+    public static final byte SKIPLEN = 5;
+
+    //датаграмма BATCH: на месте sequence number стоит количество кадров, за ним кадры, перед каждым - его длина
+    public static final byte BATCHCOUNTPOS = 1;
+    public static final byte BATCHFRAMESPOS = 5;
+    public static final byte BATCHFRAMEHEADERLEN = 2;
+
+    //фрагмент текстового сообщения
+    public static final byte FRAGMSGIDPOS = 5;
+    public static final byte FRAGINDEXPOS = 9;
+    public static final byte FRAGCOUNTPOS = 11;
+    public static final byte FRAGTOTALLENPOS = 13;
+    public static final byte FRAGOFFSETPOS = 17;
+    public static final byte FRAGLENPOS = 21;
+    public static final byte FRAGPOS = 25;
+
     public static final byte IPADDRPOS = 6;
     public static final byte PORTPOS = 10;
 
+    //возможности узла, которые он сообщает в CHILD/PARENT (байт после имени): младший бит - сжатие,
+    //старшие 4 бита - номер словаря сжатия
+    public static final byte CAPCOMPRESSION = 1;
+    public static final int CAPDICTIONARYSHIFT = 4;
+    public static final int CAPDICTIONARYMASK = 0xF0;
+
     public static final byte CHILD = 0;
     public static final byte PARENT = 1;
     public static final byte NEWPARENT = 2;